@@ -0,0 +1,92 @@
+package com.cribl.splitter.jfr;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.text.ParseException;
+
+import com.cribl.splitter.util.MemoryMonitor;
+import com.cribl.splitter.util.Phase;
+
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+
+/**
+ * The Profiler of the jdk.jfr API, only loaded by Profiler when jdk.jfr exists
+ *
+ */
+class JdkProfiler extends Profiler {
+	@Override
+	public Span begin(boolean verification) {
+		return verification ? new VerificationSpan() : new PhaseSpan();
+	}
+
+	@Override
+	public Session startRecording(String name, String settings) throws IOException {
+		final Recording recording;
+		try {
+			recording = new Recording(Configuration.getConfiguration(settings));
+		} catch (ParseException e) {
+			throw new IOException("Unable to parse the JFR settings: " + settings + " " + e.getMessage());
+		}
+		recording.enable("com.cribl.splitter.Phase");
+		recording.enable("com.cribl.splitter.Verification");
+		recording.setName(name);
+		recording.start();
+		return new Session() {
+			@Override
+			public void stop(Path file) throws IOException {
+				try {
+					recording.stop();
+					recording.dump(file);
+				} finally {
+					recording.close();
+				}
+			}
+		};
+	}
+
+	private static class PhaseSpan implements Span {
+		private final PhaseEvent event = new PhaseEvent();
+
+		PhaseSpan() {
+			event.begin();
+		}
+
+		@Override
+		public void end(Phase phase) {
+			event.end();
+			if (event.shouldCommit()) {
+				event.test = phase.getTest();
+				event.phase = phase.getName();
+				event.files = phase.getFile();
+				event.bytes = phase.getBytes();
+				event.commit();
+			}
+		}
+	}
+
+	private static class VerificationSpan implements Span {
+		private final VerificationEvent event = new VerificationEvent();
+
+		VerificationSpan() {
+			event.begin();
+		}
+
+		@Override
+		public void end(Phase phase) {
+			event.end();
+			if (event.shouldCommit()) {
+				MemoryMonitor memory = phase.getMemory();
+				event.test = phase.getTest();
+				event.method = phase.getName();
+				event.files = phase.getFile();
+				event.bytes = phase.getBytes();
+				event.allocated = memory.getAllocatedBytes();
+				event.retainedHeap = memory.getRetainedHeapBytes();
+				event.gcPauses = memory.getGcPauses();
+				event.gcPauseTime = memory.getGcPauseMillis();
+				event.commit();
+			}
+		}
+	}
+}
@@ -0,0 +1,34 @@
+package com.cribl.splitter.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JDK Flight Recorder event around a phase of the test harness like starting
+ * the containers or copying the target logs
+ *
+ */
+@Name("com.cribl.splitter.Phase")
+@Label("Harness Phase")
+@Description("A phase of running the application under test")
+@Category({ "Cribl Splitter" })
+@StackTrace(false)
+public class PhaseEvent extends Event {
+	@Label("Test")
+	public String test;
+
+	@Label("Phase")
+	public String phase;
+
+	@Label("Files")
+	public String files;
+
+	@Label("Bytes")
+	@DataAmount
+	public long bytes;
+}
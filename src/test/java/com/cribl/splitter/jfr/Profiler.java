@@ -0,0 +1,99 @@
+package com.cribl.splitter.jfr;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import com.cribl.splitter.util.Logging;
+import com.cribl.splitter.util.Phase;
+
+/**
+ * JDK Flight Recorder events and recordings behind a guard so the harness runs
+ * where jdk.jfr is missing, like Java 8 before 8u262. Only JdkProfiler and the
+ * event classes reference jdk.jfr. JdkProfiler is loaded by name when
+ * jdk.jfr.Event exists and otherwise nothing is recorded. The no-jfr profile
+ * leaves those classes out of the build for compilers without jdk.jfr
+ *
+ * <pre>
+ * ./mvnw test -Pno-jfr -Dmaven.compiler.release=8
+ * </pre>
+ *
+ */
+public abstract class Profiler {
+	private static final Profiler profiler = create();
+
+	/**
+	 * The span of one Phase from its begin to its end
+	 */
+	public interface Span {
+		/**
+		 * End the span and commit its event with the phase's fields when recorded
+		 *
+		 * @param phase the phase ending
+		 */
+		void end(Phase phase);
+	}
+
+	/**
+	 * A recording of the events of one test
+	 */
+	public interface Session {
+		/**
+		 * Stop the recording and dump it to a file
+		 *
+		 * @param file the .jfr file
+		 * @throws IOException
+		 */
+		void stop(Path file) throws IOException;
+	}
+
+	private static Profiler create() {
+		try {
+			Class.forName("jdk.jfr.Event");
+			return (Profiler) Class.forName("com.cribl.splitter.jfr.JdkProfiler").getDeclaredConstructor()
+					.newInstance();
+		} catch (ReflectiveOperationException | LinkageError e) {
+			Logging.log("JDK Flight Recorder is not available so no JFR events are emitted: " + e);
+			return new Profiler() {
+				@Override
+				public Span begin(boolean verification) {
+					return new Span() {
+						@Override
+						public void end(Phase phase) {
+						}
+					};
+				}
+
+				@Override
+				public Session startRecording(String name, String settings) {
+					return null;
+				}
+			};
+		}
+	}
+
+	/**
+	 * @return the JDK Flight Recorder profiler or one that records nothing
+	 */
+	public static Profiler get() {
+		return profiler;
+	}
+
+	/**
+	 * Begin the event of a phase
+	 *
+	 * @param verification true for a VerificationUtil call otherwise a harness
+	 *                     phase
+	 * @return Span
+	 */
+	public abstract Span begin(boolean verification);
+
+	/**
+	 * Start recording the phase events along with the JVM events of the settings
+	 *
+	 * @param name     the recording name
+	 * @param settings the JFR settings like 'profile' or 'default'
+	 * @return Session or null when JFR is not available
+	 * @throws IOException
+	 */
+	public abstract Session startRecording(String name, String settings) throws IOException;
+}
@@ -0,0 +1,51 @@
+package com.cribl.splitter.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * JDK Flight Recorder event around each call of a VerificationUtil method
+ *
+ */
+@Name("com.cribl.splitter.Verification")
+@Label("Verification")
+@Description("A VerificationUtil call reading the input and target logs")
+@Category({ "Cribl Splitter" })
+@StackTrace(false)
+public class VerificationEvent extends Event {
+	@Label("Test")
+	public String test;
+
+	@Label("Method")
+	public String method;
+
+	@Label("Files")
+	public String files;
+
+	@Label("Bytes")
+	@DataAmount
+	public long bytes;
+
+	@Label("Allocated")
+	@Description("Bytes allocated by the verifying thread")
+	@DataAmount
+	public long allocated;
+
+	@Label("Retained Heap")
+	@Description("The largest heap left after a GC during the call")
+	@DataAmount
+	public long retainedHeap;
+
+	@Label("GC Pauses")
+	public int gcPauses;
+
+	@Label("GC Pause Time")
+	@Timespan(Timespan.MILLISECONDS)
+	public long gcPauseTime;
+}
@@ -0,0 +1,161 @@
+package com.cribl.splitter.listeners;
+
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import org.testng.IInvokedMethod;
+import org.testng.IInvokedMethodListener;
+import org.testng.ISuite;
+import org.testng.ISuiteListener;
+import org.testng.ITestResult;
+import org.testng.Reporter;
+
+import com.cribl.splitter.util.CriblException;
+import com.cribl.splitter.util.Logging;
+import com.cribl.splitter.util.PerformanceHistory;
+import com.cribl.splitter.util.PerformanceUtil;
+import com.cribl.splitter.util.PipelineScheduler;
+
+/**
+ * Performance regression gate. Each test's metrics from PerformanceUtil are
+ * compared to a rolling baseline of prior runs stored in the history file and
+ * the test is failed when any metric regresses past the tolerance. A trend
+ * table is written to the test output of the report and passing runs are
+ * appended to the history at the end of the suite. Regressed runs are only
+ * appended when the gate is off or they are accepted as the new baseline so a
+ * report-only history still follows the latest runs. Runs with the
+ * environments pipelined and run in sequence keep separate baselines.
+ *
+ * Configured with system properties which default in the pom.xml
+ * <ul>
+ * <li>perf.enabled fail tests on a regression otherwise only report</li>
+ * <li>perf.acceptBaseline record regressed runs without failing, after an
+ * expected change in performance</li>
+ * <li>perf.tolerancePercent how far a metric can be worse than the baseline</li>
+ * <li>perf.baselineRuns how many of the latest runs make up the baseline</li>
+ * <li>perf.historySize how many runs are kept in the history</li>
+ * <li>perf.historyFile where the history is stored</li>
+ * </ul>
+ *
+ */
+public class PerformanceListener implements IInvokedMethodListener, ISuiteListener {
+	private static final String HISTORY_FILE = System.getProperty("perf.historyFile",
+			"performance/history.json");
+	private static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("perf.enabled", "true"));
+	private static final boolean ACCEPT_BASELINE = Boolean.getBoolean("perf.acceptBaseline");
+	private static final int TOLERANCE_PERCENTAGE = Integer.getInteger("perf.tolerancePercent", 25);
+	private static final int BASELINE_RUNS = Integer.getInteger("perf.baselineRuns", 5);
+	private static final int HISTORY_SIZE = Integer.getInteger("perf.historySize", 50);
+
+	private PerformanceHistory history;
+	private PerformanceHistory.Run run;
+
+	@Override
+	public void onStart(ISuite suite) {
+		history = PerformanceHistory.load(HISTORY_FILE);
+		run = new PerformanceHistory.Run(new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ").format(new Date()),
+				getMode());
+	}
+
+	@Override
+	public void onFinish(ISuite suite) {
+		if (run.getMetrics().isEmpty()) {
+			return;
+		}
+		run.setMode(getMode());
+		history.addRun(run);
+		try {
+			history.save(HISTORY_FILE, HISTORY_SIZE);
+		} catch (IOException e) {
+			Logging.warrning("Unable to save performance history to: " + HISTORY_FILE + " " + e.getMessage());
+		}
+	}
+
+	@Override
+	public void beforeInvocation(IInvokedMethod method, ITestResult testResult) {
+		if (!method.isTestMethod()) {
+			return;
+		}
+		PerformanceUtil.setCurrentTest(testResult.getMethod().getMethodName());
+		PerformanceUtil.resetPeakHeap();
+	}
+
+	@Override
+	public void afterInvocation(IInvokedMethod method, ITestResult testResult) {
+		if (!method.isTestMethod()) {
+			return;
+		}
+		String test = testResult.getMethod().getMethodName();
+		PerformanceUtil.record("peakHeapMB", PerformanceUtil.getPeakHeapMB());
+		if (testResult.getStatus() != ITestResult.SUCCESS) {
+			return;
+		}
+
+		Reporter.setCurrentTestResult(testResult);
+		Map<String, Double> metrics = PerformanceUtil.getMetrics(test);
+		List<String> regressions = new ArrayList<String>();
+		String mode = getMode();
+		Reporter.log("Performance trend of the last " + BASELINE_RUNS + " " + mode + " runs with a tolerance of "
+				+ TOLERANCE_PERCENTAGE + "%");
+		Reporter.log(String.format("%-28s %12s %12s %9s  %s", "Metric", "Baseline", "Current", "Change", "Trend"));
+		for (Map.Entry<String, Double> metric : metrics.entrySet()) {
+			String key = test + "." + metric.getKey();
+			double value = metric.getValue();
+			Double baseline = history.getBaseline(key, mode, BASELINE_RUNS);
+			String change = "new";
+			if (baseline != null && baseline != 0) {
+				double percentage = (value - baseline) * 100 / baseline;
+				change = String.format("%+.1f%%", percentage);
+				boolean worse = PerformanceUtil.isHigherBetter(metric.getKey()) ? -percentage > TOLERANCE_PERCENTAGE
+						: percentage > TOLERANCE_PERCENTAGE;
+				if (worse && PerformanceUtil.isGated(metric.getKey())
+						&& !(PerformanceUtil.isNoise(metric.getKey(), baseline)
+								&& PerformanceUtil.isNoise(metric.getKey(), value))) {
+					regressions.add(metric.getKey() + " " + change + " from a baseline of "
+							+ String.format("%.2f", baseline));
+					change += " !";
+				}
+			}
+			Reporter.log(String.format("%-28s %12s %12.2f %9s  %s", metric.getKey(),
+					baseline == null ? "-" : String.format("%.2f", baseline), value, change,
+					formatTrend(history.getTrend(key, mode, BASELINE_RUNS), value)));
+		}
+
+		boolean gated = ENABLED && !ACCEPT_BASELINE;
+		if (regressions.isEmpty() || !gated) {
+			for (Map.Entry<String, Double> metric : metrics.entrySet()) {
+				run.getMetrics().put(test + "." + metric.getKey(), metric.getValue());
+			}
+		}
+		if (!regressions.isEmpty()) {
+			String message = "Performance regressed past " + TOLERANCE_PERCENTAGE + "% for: " + regressions;
+			Logging.warrning(message);
+			if (ACCEPT_BASELINE) {
+				Logging.log("Accepted the regressed metrics of " + test + " into the baseline");
+			} else if (ENABLED) {
+				testResult.setStatus(ITestResult.FAILURE);
+				testResult.setThrowable(new CriblException(message));
+			}
+		}
+	}
+
+	/**
+	 * @return the mode of this run, which is only known once the
+	 *         PipelineListener has seen the suite
+	 */
+	private static String getMode() {
+		return PipelineScheduler.isOverlapping() ? PerformanceHistory.PIPELINED : PerformanceHistory.SEQUENTIAL;
+	}
+
+	private static String formatTrend(List<Double> trend, double current) {
+		StringBuilder sb = new StringBuilder();
+		for (double value : trend) {
+			sb.append(String.format("%.0f", value)).append(" > ");
+		}
+		return sb.append(String.format("%.0f", current)).toString();
+	}
+}
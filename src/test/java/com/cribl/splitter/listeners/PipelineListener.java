@@ -0,0 +1,130 @@
+package com.cribl.splitter.listeners;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.testng.IMethodInstance;
+import org.testng.IMethodInterceptor;
+import org.testng.ITestContext;
+import org.testng.ITestListener;
+import org.testng.ITestNGMethod;
+import org.testng.ITestResult;
+import org.testng.xml.XmlSuite;
+
+import com.cribl.splitter.util.PipelineScheduler;
+import com.cribl.splitter.util.Pipelined;
+
+/**
+ * Gives the PipelineScheduler the order the tests will run in, which of them
+ * are marked Pipelined, what each depends on and if the suite runs in
+ * parallel. The order of the tests is not changed. TestNG runs the tests
+ * without dependencies first in the order returned here and then the tests
+ * with dependsOnMethods or dependsOnGroups after what they depend on, so the
+ * scheduler is given that order. Tells the scheduler which test actually
+ * starts, passes or is skipped so an environment is only started early for a
+ * test that is next to run with its dependencies passed
+ *
+ */
+public class PipelineListener implements IMethodInterceptor, ITestListener {
+
+	@Override
+	public List<IMethodInstance> intercept(List<IMethodInstance> methods, ITestContext context) {
+		List<String> order = new ArrayList<String>();
+		List<String> dependents = new ArrayList<String>();
+		Set<String> pipelined = new HashSet<String>();
+		Map<String, Set<String>> dependencies = new HashMap<String, Set<String>>();
+		for (IMethodInstance instance : methods) {
+			ITestNGMethod testMethod = instance.getMethod();
+			Method method = testMethod.getConstructorOrMethod().getMethod();
+			Set<String> dependsOn = getDependencies(testMethod, methods);
+			if (dependsOn.isEmpty()) {
+				order.add(method.getName());
+			} else {
+				dependents.add(method.getName());
+				dependencies.put(method.getName(), dependsOn);
+			}
+			if (method.isAnnotationPresent(Pipelined.class)) {
+				pipelined.add(method.getName());
+			}
+		}
+		// Each dependent runs after the tests it depends on
+		while (!dependents.isEmpty()) {
+			String next = dependents.get(0);
+			for (String dependent : dependents) {
+				if (order.containsAll(dependencies.get(dependent))) {
+					next = dependent;
+					break;
+				}
+			}
+			dependents.remove(next);
+			order.add(next);
+		}
+
+		XmlSuite.ParallelMode parallel = context.getCurrentXmlTest().getParallel();
+		PipelineScheduler.setOrder(order, pipelined, dependencies, parallel != null && parallel.isParallel());
+		return methods;
+	}
+
+	/**
+	 * @param method  the test method
+	 * @param methods all the test methods of the suite
+	 * @return the names of the test methods it depends on directly or through
+	 *         their groups
+	 */
+	private static Set<String> getDependencies(ITestNGMethod method, List<IMethodInstance> methods) {
+		Set<String> dependsOn = new HashSet<String>();
+		for (String dependency : method.getMethodsDependedUpon()) {
+			// Qualified with the class name
+			dependsOn.add(dependency.substring(dependency.lastIndexOf('.') + 1));
+		}
+		List<String> groups = Arrays.asList(method.getGroupsDependedUpon());
+		for (IMethodInstance instance : methods) {
+			for (String group : instance.getMethod().getGroups()) {
+				if (groups.contains(group)) {
+					dependsOn.add(instance.getMethod().getMethodName());
+				}
+			}
+		}
+		return dependsOn;
+	}
+
+	@Override
+	public void onTestStart(ITestResult result) {
+		PipelineScheduler.starting(result.getMethod().getMethodName());
+	}
+
+	@Override
+	public void onTestSkipped(ITestResult result) {
+		PipelineScheduler.finished(result.getMethod().getMethodName(), false);
+		PipelineScheduler.discard(result.getMethod().getMethodName());
+	}
+
+	@Override
+	public void onTestSuccess(ITestResult result) {
+		PipelineScheduler.finished(result.getMethod().getMethodName(), true);
+	}
+
+	@Override
+	public void onTestFailure(ITestResult result) {
+		PipelineScheduler.finished(result.getMethod().getMethodName(), false);
+	}
+
+	@Override
+	public void onTestFailedButWithinSuccessPercentage(ITestResult result) {
+		PipelineScheduler.finished(result.getMethod().getMethodName(), true);
+	}
+
+	@Override
+	public void onStart(ITestContext context) {
+	}
+
+	@Override
+	public void onFinish(ITestContext context) {
+	}
+}
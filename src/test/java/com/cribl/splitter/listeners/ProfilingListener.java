@@ -0,0 +1,126 @@
+package com.cribl.splitter.listeners;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.IInvokedMethod;
+import org.testng.IInvokedMethodListener;
+import org.testng.ITestResult;
+import org.testng.Reporter;
+
+import com.cribl.splitter.jfr.Profiler;
+import com.cribl.splitter.util.CriblException;
+import com.cribl.splitter.util.Logging;
+import com.cribl.splitter.util.MemoryMonitor;
+import com.cribl.splitter.util.Phase;
+import com.cribl.splitter.util.ResourceSampler;
+
+/**
+ * Renders a breakdown of the time spent in each Phase of a test into the
+ * report. When run with -Djfr.record=true a JDK Flight Recorder file is also
+ * recorded per test to 'logs/<test name>/<test name>.jfr' with the harness
+ * phase and verification events along with the JVM profile events so the
+ * harness can be profiled together with the system under test. The JFR
+ * settings can be changed with -Djfr.settings which defaults to 'profile'.
+ * Nothing is recorded when the Profiler finds no JDK Flight Recorder.
+ *
+ * The ResourceSampler is also started for each test so the processes launched
+ * by the harness are sampled from /proc.
+ *
+ * Verification phases also show the memory measured by their MemoryMonitor.
+ * When run with -Dmemory.budgetMB a test with a verification over the budget
+ * is failed.
+ *
+ */
+public class ProfilingListener implements IInvokedMethodListener {
+	private static final boolean RECORD = Boolean.getBoolean("jfr.record");
+	private static final String SETTINGS = System.getProperty("jfr.settings", "profile");
+
+	private Profiler.Session recording;
+	private long startNanos;
+
+	@Override
+	public void beforeInvocation(IInvokedMethod method, ITestResult testResult) {
+		if (!method.isTestMethod()) {
+			return;
+		}
+		startNanos = System.nanoTime();
+		ResourceSampler.start(testResult.getMethod().getMethodName());
+		if (RECORD) {
+			try {
+				recording = Profiler.get().startRecording(testResult.getMethod().getMethodName(), SETTINGS);
+			} catch (IOException e) {
+				Logging.warrning("Unable to start the JFR recording with settings: " + SETTINGS + " " + e.getMessage());
+				recording = null;
+			}
+		}
+	}
+
+	@Override
+	public void afterInvocation(IInvokedMethod method, ITestResult testResult) {
+		if (!method.isTestMethod()) {
+			return;
+		}
+		String test = testResult.getMethod().getMethodName();
+		long testMillis = (System.nanoTime() - startNanos) / 1000000;
+		ResourceSampler.stop(test);
+		if (recording != null) {
+			Path file = Paths.get("logs", test, test + ".jfr");
+			try {
+				Files.createDirectories(file.getParent());
+				recording.stop(file);
+				Logging.log("Saved JFR recording to: " + file);
+			} catch (IOException e) {
+				Logging.warrning("Unable to save JFR recording to: " + file + " " + e.getMessage());
+			} finally {
+				recording = null;
+			}
+		}
+
+		List<Phase> phases = Phase.getCompleted(test);
+		if (phases.isEmpty()) {
+			return;
+		}
+		Reporter.setCurrentTestResult(testResult);
+		Reporter.log("Phase breakdown of the " + testMillis + " ms test");
+		Reporter.log(String.format("%-22s %10s %7s %14s %9s %10s %9s %7s  %s", "Phase", "Millis", "Test %", "Bytes",
+				"MB/s", "AllocMB", "HeapMB", "GC ms", "Files"));
+		List<String> overBudget = new ArrayList<String>();
+		for (Phase phase : phases) {
+			// Verification calls are nested in the harness phases and each other
+			String name = phase.getName();
+			if (phase.isVerification()) {
+				for (int i = 0; i <= phase.getDepth(); i++) {
+					name = "  " + name;
+				}
+			}
+			String rate = phase.getMillis() == 0 ? "-"
+					: String.format("%.1f", phase.getBytes() * 1000.0 / phase.getMillis() / (1024 * 1024));
+			MemoryMonitor memory = phase.getMemory();
+			String allocated = memory == null || memory.getAllocatedBytes() < 0 ? "-"
+					: String.format("%.1f", memory.getAllocatedBytes() / (1024.0 * 1024.0));
+			String heap = memory == null ? "-"
+					: String.format("%.1f", memory.getRetainedDeltaBytes() / (1024.0 * 1024.0));
+			String gc = memory == null ? "-" : String.valueOf(memory.getGcPauseMillis());
+			Reporter.log(String.format("%-22s %10d %6.1f%% %14d %9s %10s %9s %7s  %s", name, phase.getMillis(),
+					testMillis == 0 ? 0.0 : phase.getMillis() * 100.0 / testMillis, phase.getBytes(), rate, allocated,
+					heap, gc, phase.getFile() == null ? "" : phase.getFile()));
+			if (memory != null && memory.isOverBudget()) {
+				overBudget.add(phase.getName() + " retained " + (memory.getRetainedDeltaBytes() / (1024 * 1024))
+						+ " MB over its start");
+			}
+		}
+
+		if (!overBudget.isEmpty() && testResult.getStatus() == ITestResult.SUCCESS) {
+			String message = "Verification exceeded the memory budget of "
+					+ (MemoryMonitor.getBudgetBytes() / (1024 * 1024)) + " MB: " + overBudget;
+			Logging.warrning(message);
+			testResult.setStatus(ITestResult.FAILURE);
+			testResult.setThrowable(new CriblException(message));
+		}
+	}
+}
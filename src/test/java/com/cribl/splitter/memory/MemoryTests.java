@@ -0,0 +1,230 @@
+package com.cribl.splitter.memory;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import com.cribl.splitter.util.CriblException;
+import com.cribl.splitter.util.EventInputStream;
+import com.cribl.splitter.util.LineClassifier;
+import com.cribl.splitter.util.Logging;
+import com.cribl.splitter.util.MerkleTree;
+import com.cribl.splitter.util.VerificationUtil;
+
+/**
+ * These tests hold every verification to a constant memory footprint. They run
+ * with the memory profile under a small -Xmx against a generated input of
+ * -Dmemory.inputMB (10 GB by default) split line by line across two targets as
+ * the splitter would. A verification that grows with the logs runs out of
+ * memory and one retaining more than -Dmemory.budgetMB is failed by the
+ * ProfilingListener
+ *
+ * <pre>
+ * ./mvnw test -Pmemory
+ * </pre>
+ *
+ * The input and targets take about twice -Dmemory.inputMB of disk in
+ * 'logs/memory' so generating fails early when there is not enough free
+ * space. They are deleted after the tests unless -Dmemory.keepLogs=true keeps
+ * them for later runs to reuse. One line of LONG_LINE_BYTES without a new line
+ * in the middle is the only corrupt line.
+ *
+ */
+public class MemoryTests {
+	private static final String MEMORY_LOGS = "logs/memory";
+	private static final String INPUT = MEMORY_LOGS + "/input.log";
+	// Written last so the logs are only reused when completely generated
+	private static final String HISTOGRAM = MEMORY_LOGS + "/input.histogram";
+	private static final long INPUT_BYTES = Long.getLong("memory.inputMB", 10240) * 1024 * 1024;
+	private static final int LONG_LINE_BYTES = 64 * 1024 * 1024;
+	private static final boolean KEEP_LOGS = Boolean.getBoolean("memory.keepLogs");
+
+	private final ArrayList<String> targetLogs = new ArrayList<String>();
+	private long[] inputHistogram;
+
+	@BeforeClass
+	public void generateLogs() throws IOException, CriblException {
+		targetLogs.add(MEMORY_LOGS + "/events1.log");
+		targetLogs.add(MEMORY_LOGS + "/events2.log");
+		if (new File(HISTOGRAM).exists() && new File(INPUT).length() >= INPUT_BYTES) {
+			inputHistogram = readHistogram();
+			Logging.log("Reusing the " + new File(INPUT).length() + " byte input generated in: " + MEMORY_LOGS);
+			return;
+		}
+
+		Files.createDirectories(Paths.get(MEMORY_LOGS));
+		Files.deleteIfExists(Paths.get(HISTOGRAM));
+		checkFreeSpace();
+		Logging.log("Generating a " + INPUT_BYTES + " byte input in: " + MEMORY_LOGS);
+		inputHistogram = new long[256];
+		List<OutputStream> targets = new ArrayList<OutputStream>();
+		try (InputStream events = new EventInputStream(Long.MAX_VALUE);
+				OutputStream input = new BufferedOutputStream(new FileOutputStream(INPUT), 1024 * 1024)) {
+			for (String targetLog : targetLogs) {
+				targets.add(new BufferedOutputStream(new FileOutputStream(targetLog), 1024 * 1024));
+			}
+			byte[] buffer = new byte[64 * 1024];
+			long written = 0;
+			long partial = 0;
+			int target = 0;
+			boolean longLine = false;
+			// Stops on the first new line past INPUT_BYTES so every line is complete
+			while (written < INPUT_BYTES) {
+				int read = events.read(buffer);
+				// Each line goes to the next target, a partial line continues in the
+				// same target on the next read
+				int start = 0;
+				for (int i = 0; i < read && written < INPUT_BYTES; i++) {
+					if (buffer[i] == '\n') {
+						targets.get(target).write(buffer, start, i + 1 - start);
+						input.write(buffer, start, i + 1 - start);
+						written += partial + i + 1 - start;
+						partial = 0;
+						target = (target + 1) % targets.size();
+						start = i + 1;
+						if (!longLine && written >= INPUT_BYTES / 2) {
+							written += writeLongLine(input, targets.get(target));
+							target = (target + 1) % targets.size();
+							longLine = true;
+						}
+					}
+				}
+				if (written < INPUT_BYTES) {
+					targets.get(target).write(buffer, start, read - start);
+					input.write(buffer, start, read - start);
+					partial += read - start;
+					start = read;
+				}
+				for (int i = 0; i < start; i++) {
+					inputHistogram[buffer[i] & 0xff]++;
+				}
+			}
+		} finally {
+			for (OutputStream target : targets) {
+				target.close();
+			}
+		}
+		writeHistogram();
+	}
+
+	/**
+	 * Fail before generating when the input and targets won't fit on the disk.
+	 * The logs already there are overwritten so their space counts as free
+	 */
+	private static void checkFreeSpace() throws CriblException {
+		long required = 2 * (INPUT_BYTES + LONG_LINE_BYTES);
+		long free = new File(MEMORY_LOGS).getUsableSpace();
+		File[] logs = new File(MEMORY_LOGS).listFiles();
+		if (logs != null) {
+			for (File log : logs) {
+				free += log.length();
+			}
+		}
+		if (free < required) {
+			Logging.error("Generating the memory logs needs " + required / (1024 * 1024) + " MB of disk but only "
+					+ free / (1024 * 1024) + " MB is free in: " + MEMORY_LOGS + ", lower -Dmemory.inputMB");
+		}
+	}
+
+	@AfterClass(alwaysRun = true)
+	public void deleteLogs() throws IOException {
+		if (KEEP_LOGS) {
+			Logging.log("Keeping the memory logs in: " + MEMORY_LOGS + " for later runs");
+			return;
+		}
+		File[] logs = new File(MEMORY_LOGS).listFiles();
+		if (logs == null) {
+			return;
+		}
+		for (File log : logs) {
+			Files.delete(log.toPath());
+		}
+		Files.delete(Paths.get(MEMORY_LOGS));
+		Logging.log("Deleted the memory logs in: " + MEMORY_LOGS);
+	}
+
+	private long writeLongLine(OutputStream input, OutputStream target) throws IOException {
+		byte[] chunk = new byte[64 * 1024];
+		Arrays.fill(chunk, (byte) 'x');
+		for (int written = 0; written < LONG_LINE_BYTES; written += chunk.length) {
+			input.write(chunk);
+			target.write(chunk);
+		}
+		input.write('\n');
+		target.write('\n');
+		inputHistogram['x'] += LONG_LINE_BYTES;
+		inputHistogram['\n']++;
+		return LONG_LINE_BYTES + 1;
+	}
+
+	private void writeHistogram() throws IOException {
+		StringBuilder histogram = new StringBuilder();
+		for (long count : inputHistogram) {
+			histogram.append(count).append('\n');
+		}
+		Files.write(Paths.get(HISTOGRAM), histogram.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	private long[] readHistogram() throws IOException {
+		List<String> lines = Files.readAllLines(Paths.get(HISTOGRAM), StandardCharsets.UTF_8);
+		long[] histogram = new long[256];
+		for (int i = 0; i < histogram.length; i++) {
+			histogram[i] = Long.parseLong(lines.get(i));
+		}
+		return histogram;
+	}
+
+	@Test
+	public void verifyLogContentTest() throws IOException, CriblException {
+		Assert.assertEquals(VerificationUtil.verifyLogContent(INPUT, targetLogs), inputHistogram['\n']);
+	}
+
+	@Test
+	public void verifyLogHistogramTest() throws IOException, CriblException {
+		Assert.assertEquals(VerificationUtil.verifyLogHistogram(inputHistogram, targetLogs), inputHistogram['\n']);
+	}
+
+	@Test
+	public void verifyLogSizesTest() throws CriblException {
+		// The long line leaves the targets unbalanced so only the total size is checked
+		Assert.assertTrue(VerificationUtil.verifyLogSizes(INPUT, targetLogs) >= 0);
+	}
+
+	@Test
+	public void getCorruptLogCountTest() throws IOException, CriblException {
+		Assert.assertEquals(VerificationUtil.getCorruptLogCount(targetLogs, EventInputStream.EVENT_PATTERN), 1);
+	}
+
+	@Test
+	public void classifyTest() throws IOException, CriblException {
+		List<String> locations = new ArrayList<String>(targetLogs);
+		locations.add(INPUT);
+		LineClassifier.Result result = new LineClassifier()
+				.addRegex("valid", EventInputStream.EVENT_PATTERN, "This is event number ").classify(locations);
+		Assert.assertEquals(result.getLines(targetLogs), result.getLines(INPUT));
+		Assert.assertEquals(result.getCount(targetLogs, "valid"), result.getLines(INPUT) - 1);
+	}
+
+	@Test
+	public void compareRunsTest() throws IOException, CriblException {
+		ArrayList<String> expected = new ArrayList<String>();
+		expected.add(targetLogs.get(1));
+		List<MerkleTree.Divergence> divergences = VerificationUtil.compareRuns(expected,
+				new ArrayList<String>(targetLogs.subList(0, 1)));
+		Assert.assertFalse(divergences.get(0).isIdentical());
+	}
+}
@@ -0,0 +1,113 @@
+package com.cribl.splitter.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import com.cribl.splitter.util.CriblException;
+import com.cribl.splitter.util.LineClassifier;
+
+/**
+ * These tests check the LineClassifier against small generated logs so they
+ * run without Docker. They cover keywords that overlap or are suffixes of each
+ * other, multi-byte UTF-8 and lines longer than the 1 MB the regexes see.
+ *
+ */
+public class LineClassifierTests {
+	private static final int MAX_LINE_BYTES = 1024 * 1024;
+
+	private Path directory;
+
+	@BeforeClass
+	public void createDirectory() throws IOException {
+		directory = Files.createTempDirectory("lineClassifier");
+	}
+
+	@AfterClass(alwaysRun = true)
+	public void deleteDirectory() throws IOException {
+		File[] files = directory.toFile().listFiles();
+		if (files != null) {
+			for (File file : files) {
+				Files.delete(file.toPath());
+			}
+		}
+		Files.delete(directory);
+	}
+
+	private String writeLog(String name, String content) throws IOException {
+		Path log = directory.resolve(name);
+		Files.write(log, content.getBytes(StandardCharsets.UTF_8));
+		return log.toString();
+	}
+
+	/**
+	 * Keywords ending inside or at the end of other keywords are all found, the
+	 * classic she, he, hers and his of Aho-Corasick. A last line without a new
+	 * line is still counted
+	 */
+	@Test
+	public void overlappingKeywordsTest() throws IOException, CriblException {
+		String log = writeLog("overlapping.log", "ushers\nshe\nhe\nhis hers\nxyz\nhehe");
+		LineClassifier.Result result = new LineClassifier().addKeyword("she", "she").addKeyword("he", "he")
+				.addKeyword("hers", "hers").addKeyword("his", "his").classify(Collections.singletonList(log));
+		Assert.assertEquals(result.getLines(log), 6);
+		Assert.assertEquals(result.getCount(log, "she"), 2);
+		Assert.assertEquals(result.getCount(log, "he"), 5);
+		Assert.assertEquals(result.getCount(log, "hers"), 2);
+		Assert.assertEquals(result.getCount(log, "his"), 1);
+	}
+
+	/**
+	 * Keywords and regexes with multi-byte UTF-8 characters match on their
+	 * bytes and decoded characters. The literal of a regex skips the lines
+	 * without it
+	 */
+	@Test
+	public void multiByteTest() throws IOException, CriblException {
+		// Japanese, u with an umlaut and n with a tilde
+		String log = writeLog("multiByte.log", "\u3053\u3093\u306b\u3061\u306f\u65e5\u672c\nM\u00fcller\nni\u00f1o\nnino\n"
+				+ "\u65e5\u672c \u00fcber ni\u00f1\u00f1o\n");
+		LineClassifier.Result result = new LineClassifier().addKeyword("japan", "\u65e5\u672c")
+				.addKeyword("umlaut", "\u00fc").addRegex("tilde", "\u00f1+o", "\u00f1").addRegex("anyChar", "ni.o", null)
+				.classify(Collections.singletonList(log));
+		Assert.assertEquals(result.getLines(log), 5);
+		Assert.assertEquals(result.getCount(log, "japan"), 2);
+		Assert.assertEquals(result.getCount(log, "umlaut"), 2);
+		Assert.assertEquals(result.getCount(log, "tilde"), 2);
+		// '.' matches the n with a tilde as one character, not as its two bytes
+		Assert.assertEquals(result.getCount(log, "anyChar"), 2);
+	}
+
+	/**
+	 * Regexes only see the first MAX_LINE_BYTES of a line while keywords are
+	 * found anywhere in it. An unmatched line is sampled with its length noted
+	 */
+	@Test
+	public void truncationTest() throws IOException, CriblException {
+		char[] filler = new char[MAX_LINE_BYTES];
+		Arrays.fill(filler, 'x');
+		String log = writeLog("truncation.log", "event 1 " + new String(filler) + "\n" + new String(filler)
+				+ " event 2 tail\nevent 3\n");
+		LineClassifier.Result result = new LineClassifier().addKeyword("tail", "tail")
+				.addRegex("event", "event \\d", "event").sampleUnmatched("event", 10)
+				.classify(Collections.singletonList(log));
+		Assert.assertEquals(result.getLines(log), 3);
+		Assert.assertEquals(result.getCount(log, "tail"), 1);
+		Assert.assertEquals(result.getCount(log, "event"), 2);
+
+		List<String> samples = result.getSamples();
+		Assert.assertEquals(samples.size(), 1);
+		Assert.assertTrue(samples.get(0).startsWith(log + ":2: xxx"), samples.get(0));
+		Assert.assertTrue(samples.get(0).endsWith("... (" + MAX_LINE_BYTES + " bytes kept)"), samples.get(0));
+	}
+}
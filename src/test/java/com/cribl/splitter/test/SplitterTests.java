@@ -1,28 +1,55 @@
 package com.cribl.splitter.test;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 
 import org.testng.Assert;
 import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeClass;
 import org.testng.annotations.Test;
 
+import com.cribl.splitter.util.CaptureServer;
 import com.cribl.splitter.util.CriblException;
+import com.cribl.splitter.util.EventInputStream;
+import com.cribl.splitter.util.FanInLoadClient;
+import com.cribl.splitter.util.FifoFeeder;
+import com.cribl.splitter.util.LineClassifier;
 import com.cribl.splitter.util.Logging;
+import com.cribl.splitter.util.MerkleTree;
+import com.cribl.splitter.util.PerformanceUtil;
+import com.cribl.splitter.util.Phase;
+import com.cribl.splitter.util.PipelineScheduler;
+import com.cribl.splitter.util.Pipelined;
+import com.cribl.splitter.util.ResourceSampler;
+import com.cribl.splitter.util.StreamReplayer;
 import com.cribl.splitter.util.SystemUtil;
 import com.cribl.splitter.util.VerificationUtil;
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
 
 public class SplitterTests {
 	// Default log and container names
 	private static final String AGENT_INPUT = "node/agent/inputs/input.log";
 	private static final String DOCKER_LOGS = "/usr/src/app/events.log";
+	private static final String SPLITTER_FILTER = "node/splitter/filter.json";
 	private static final String TARGET1 = "cribl-splitter_target_1_1";
 	private static final String TARGET2 = "cribl-splitter_target_2_1";
+	private static final String SPLITTER = "cribl-splitter_splitter_1";
+	private static final String AGENT = "cribl-splitter_agent_1";
 	private static ArrayList<String> currentTargetLogs;
 	private static String currentInputLog;
 
@@ -30,10 +57,46 @@ public class SplitterTests {
 	// https://en.wikipedia.org/wiki/Packet_loss#Acceptable_packet_loss
 	private final static int PACKET_LOSS_PERCENTAGE = 3;
 
+	// Lowest Jain's fairness index of the delivery of the fan in agents, 1 is
+	// every agent served equally
+	private final static double MIN_DELIVERY_FAIRNESS = 0.9;
+
 	// Threshold for how far off the expected average size is off from equal parts
 	// of original input file
 	private final static int FILE_SIZE_BALANCE_PERCENTAGE_THRESHOLD = 10;
 
+	// Line classification names and the severity tags counted in every log
+	private static final String VALID_LINE = "valid";
+	private static final String[] SEVERITY_TAGS = { "ERROR", "WARN", "INFO", "DEBUG" };
+	private static final int MAX_CORRUPT_LINES_LOGGED = 100;
+
+	// Fan in load settings for the many agents connecting to one splitter
+	private static final String FAN_IN_COMPOSE = "docker-compose -f docker-compose.yml -f docker-compose.fanin.yml";
+	private static final int FAN_IN_PORT = 9997;
+	private static final int FAN_IN_CONNECTIONS = Integer.getInteger("fanin.connections", 1000);
+	private static final int FAN_IN_EVENTS = Integer.getInteger("fanin.events", 1000);
+	private static final int FAN_IN_EVENTS_PER_SECOND = Integer.getInteger("fanin.eventsPerSecond", 500);
+	private static final int FAN_IN_EVENT_LOOPS = Integer.getInteger("fanin.eventLoops", 4);
+	private static final long FAN_IN_TIMEOUT_MILLIS = Long.getLong("fanin.timeoutMillis", 300000);
+
+	// Capture of the splitter to target streams. Replay only skips docker and
+	// replays the capture already in the logs
+	private static final String CAPTURE_COMPOSE = "docker-compose -f docker-compose.yml -f docker-compose.capture.yml";
+	private static final int CAPTURE_PORT = 9997;
+	private static final long CAPTURE_TIMEOUT_MILLIS = 300000;
+	private static final boolean CAPTURE_REPLAY_ONLY = Boolean.getBoolean("capture.replayOnly");
+
+	// Feeding the agent through a FIFO with generated events or an existing input.
+	// Enabled the input of every runApplication test is fed through the FIFO too
+	private static final String FIFO_COMPOSE = "docker-compose -f docker-compose.yml -f docker-compose.fifo.yml";
+	private static final boolean FIFO_ENABLED = Boolean.getBoolean("fifo.enabled");
+	private static final long FIFO_EVENTS = Long.getLong("fifo.events", 1000000);
+	private static final String FIFO_INPUT = System.getProperty("fifo.input", "");
+	private static final long FIFO_TIMEOUT_MILLIS = 600000;
+	// What was fed of each input, so its verification doesn't read the input again
+	private static final Map<String, FifoFeeder.Result> fedInputs = Collections
+			.synchronizedMap(new HashMap<String, FifoFeeder.Result>());
+
 	@BeforeClass
 	public void beforeClass() throws IOException, CriblException {
 		SystemUtil.runCommand("docker-compose down", null);
@@ -43,7 +106,9 @@ public class SplitterTests {
 	 * Run the application under test that does the necessary file setup, running
 	 * the docker compose, grabbing logs and shutting down the test environment. A
 	 * debug flag can be used to help with test case development after grabbing all
-	 * the necessary files after first run.
+	 * the necessary files after first run. The environment is run through the
+	 * PipelineScheduler which may have already started it while the prior test
+	 * was verifying
 	 * 
 	 * @param name  the test case name. The test name, input files and logs are all
 	 *              matched by this for easier investigation of issues
@@ -54,46 +119,257 @@ public class SplitterTests {
 	 */
 	private void runApplication(String name, Boolean debug) throws IOException, CriblException {
 		// Set all the current input and output logs files and directories
-		Files.createDirectories(Paths.get("logs/" + name));
-		currentTargetLogs = new ArrayList<String>();
-		currentTargetLogs.add("logs/" + name + "/events1.log");
-		currentTargetLogs.add("logs/" + name + "/events2.log");
+		currentTargetLogs = getTargetLogs(name);
 		currentInputLog = "inputs/" + name + ".log";
 
-		// Run application, copy file and tear down
 		if (!debug) {
-			SystemUtil.copyFile(new File(currentInputLog), new File(AGENT_INPUT));
-			SystemUtil.runCommand("docker-compose up --build", "agent_1 exited");
-			SystemUtil.runCommand("docker cp " + TARGET1 + ":" + DOCKER_LOGS + " ./" + currentTargetLogs.get(0), null);
-			SystemUtil.runCommand("docker cp " + TARGET2 + ":" + DOCKER_LOGS + " ./" + currentTargetLogs.get(1), null);
+			PipelineScheduler.runEnvironment(name, new PipelineScheduler.Environment() {
+				@Override
+				public void run(String test) throws IOException, CriblException {
+					runEnvironment(test);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Copy the input file, run the docker compose and copy the target logs to the
+	 * test's log folder then tear down. With -Dfifo.enabled=true the input is
+	 * streamed to the agent through a FIFO instead of copied and the bytes fed
+	 * are checked against the input's stored SHA-256. This can run on the pipeline
+	 * worker thread so it must not touch the current test fields
+	 * 
+	 * @param name the test case name
+	 * @throws IOException
+	 * @throws CriblException
+	 */
+	private static void runEnvironment(String name) throws IOException, CriblException {
+		Files.createDirectories(Paths.get("logs/" + name));
+		String inputLog = "inputs/" + name + ".log";
+		ArrayList<String> targetLogs = getTargetLogs(name);
+
+		// Each phase is timed for the PerformanceListener and ProfilingListener
+		if (FIFO_ENABLED) {
+			runFifoInput(inputLog);
+		} else {
+			Phase copyInput = Phase.begin("copyInput").addFile(inputLog);
+			try {
+				SystemUtil.copyFile(new File(inputLog), new File(AGENT_INPUT));
+			} finally {
+				copyInput.close();
+			}
+			Phase composeUp = Phase.begin("composeUp");
+			try {
+				ResourceSampler sampler = ResourceSampler.current();
+				if (sampler != null) {
+					sampler.attachContainers(TARGET1, TARGET2, SPLITTER, AGENT);
+				}
+				SystemUtil.runCommand("docker-compose up --build", "agent_1 exited");
+			} finally {
+				composeUp.close();
+			}
+		}
+		// The agent's own run time leaves out the image build of compose up
+		long agentRunMillis = getContainerRunMillis(AGENT);
+		if (agentRunMillis > 0) {
+			PerformanceUtil.record("agentRunMillis", agentRunMillis);
+		}
+		try (Phase phase = Phase.begin("dockerCp")) {
+			SystemUtil.runCommand("docker cp " + TARGET1 + ":" + DOCKER_LOGS + " ./" + targetLogs.get(0), null);
+			SystemUtil.runCommand("docker cp " + TARGET2 + ":" + DOCKER_LOGS + " ./" + targetLogs.get(1), null);
+			for (String targetLog : targetLogs) {
+				if (new File(targetLog).exists()) {
+					phase.addFile(targetLog);
+				}
+			}
+		}
+		Phase composeDown = Phase.begin("composeDown");
+		try {
 			SystemUtil.runCommand("docker-compose down", null);
+		} finally {
+			composeDown.close();
+		}
+	}
+
+	/**
+	 * Run the docker compose with the input streamed to the agent through a FIFO
+	 * and check every byte of the input was fed. The lines are classified while
+	 * feeding and what was fed is kept for basicVerification. The FIFO is removed
+	 * afterwards so the next test can copy its input
+	 * 
+	 * @param inputLog the input file location
+	 * @throws IOException
+	 * @throws CriblException
+	 */
+	private static void runFifoInput(String inputLog) throws IOException, CriblException {
+		FifoFeeder.Result fed;
+		try {
+			// The image is built first as the build context can't contain a FIFO
+			Phase composeBuild = Phase.begin("composeBuild");
+			try {
+				SystemUtil.runCommand(FIFO_COMPOSE + " build", null);
+			} finally {
+				composeBuild.close();
+			}
+			FifoFeeder.createFifo(AGENT_INPUT);
+			FifoFeeder feeder = new FifoFeeder(AGENT_INPUT, new FileInputStream(inputLog),
+					getKeywordClassifier().begin(inputLog));
+			try (Phase phase = Phase.begin("composeUp")) {
+				ResourceSampler sampler = ResourceSampler.current();
+				if (sampler != null) {
+					sampler.attachContainers(TARGET1, TARGET2, SPLITTER, AGENT);
+				}
+				SystemUtil.runCommand(FIFO_COMPOSE + " up", "agent_1 exited");
+				fed = feeder.await(FIFO_TIMEOUT_MILLIS);
+				phase.addBytes(fed.getBytes());
+			}
+		} finally {
+			Files.deleteIfExists(Paths.get(AGENT_INPUT));
 		}
+		verifyStoredSha256(inputLog, fed);
+		fedInputs.put(inputLog, fed);
+	}
+
+	/**
+	 * Check the SHA-256 of what was fed against the digest stored for the input
+	 * in the SHA256SUMS next to it. Without a stored digest this only warns
+	 * 
+	 * @param inputLog the input file location
+	 * @param fed      what was fed through the FIFO
+	 * @throws IOException
+	 * @throws CriblException
+	 */
+	private static void verifyStoredSha256(String inputLog, FifoFeeder.Result fed)
+			throws IOException, CriblException {
+		File sums = new File(new File(inputLog).getAbsoluteFile().getParentFile(), "SHA256SUMS");
+		String expected = FifoFeeder.readSha256(sums.getPath(), inputLog);
+		if (expected == null) {
+			Logging.warrning("No SHA-256 stored for: " + inputLog + " in: " + sums.getPath()
+					+ " so what was fed is not checked");
+		} else {
+			fed.verifySha256(expected);
+		}
+	}
+
+	/**
+	 * @param name the test case name
+	 * @return the locations the target logs of the test are copied to
+	 */
+	private static ArrayList<String> getTargetLogs(String name) {
+		ArrayList<String> targetLogs = new ArrayList<String>();
+		targetLogs.add("logs/" + name + "/events1.log");
+		targetLogs.add("logs/" + name + "/events2.log");
+		return targetLogs;
 	}
 
 	/**
 	 * This does the basic verification of the log contents, log file sizes and the
 	 * estimated corrupted logs based on a regex and fails the test if they don't
-	 * meet the thresholds
+	 * meet the thresholds. The splitter filter term and the severity tags are
+	 * counted by LineClassifier keywords in one pass over the input and the
+	 * targets are classified in a second pass that also runs the regex, only on
+	 * the lines containing the literal. The first corrupt target lines are
+	 * logged. When the input was fed through the FIFO its byte histogram and
+	 * keyword counts from feeding are used and the input is not read at all.
+	 * 
+	 * The filter term and severity lines in the targets have to match the input
+	 * within the same threshold as corrupt lines since a corrupt line can lose its
+	 * keyword. The splitter app.ts never reads filter.json so this only asserts
+	 * that the splitter does not filter, lines with the term must get through
+	 * like any other. The verification throughput and pipeline events per second
+	 * over the agent's run time are recorded for the PerformanceListener
 	 * 
 	 * @param inputLocation   the input file location
 	 * @param targetLocations the target log file locations
 	 * @param regex           the pattern to confirm a valid log line
+	 * @param literal         text every valid line contains so the regex only
+	 *                        runs on lines containing it, or null to run the
+	 *                        regex on every line
 	 * @throws IOException
 	 * @throws CriblException
 	 */
-	private static void basicVerification(String inputLocation, ArrayList<String> targetLocations, String regex)
-			throws IOException, CriblException {
-		long lineCount = VerificationUtil.verifyLogContent(inputLocation, targetLocations);
-		int avgDistancePercentage = VerificationUtil.verifyLogSizes(inputLocation, targetLocations);
-		if (avgDistancePercentage > FILE_SIZE_BALANCE_PERCENTAGE_THRESHOLD) {
-			Logging.error("The events.log file sizes from the target are inbalanced");
+	private static void basicVerification(String inputLocation, ArrayList<String> targetLocations, String regex,
+			String literal) throws IOException, CriblException {
+		long lineCount;
+		FifoFeeder.Result fed = fedInputs.remove(inputLocation);
+		Phase phase = Phase.begin("verification").addFiles(targetLocations);
+		if (fed == null) {
+			phase.addFile(inputLocation);
 		}
-		long corruptCount = VerificationUtil.getCorruptLogCount(targetLocations, regex);
-		if (((int) (corruptCount * 100) / lineCount) > PACKET_LOSS_PERCENTAGE) {
-			Logging.error("The number of corrupt packets % exceeds the threshold of: " + PACKET_LOSS_PERCENTAGE);
+		try {
+			if (fed == null) {
+				lineCount = VerificationUtil.verifyLogContent(inputLocation, targetLocations);
+			} else {
+				lineCount = VerificationUtil.verifyLogHistogram(fed.getHistogram(), targetLocations);
+			}
+			int avgDistancePercentage = VerificationUtil.verifyLogSizes(inputLocation, targetLocations);
+			if (avgDistancePercentage > FILE_SIZE_BALANCE_PERCENTAGE_THRESHOLD) {
+				Logging.error("The events.log file sizes from the target are inbalanced");
+			}
+
+			LineClassifier.Result input = fed != null ? fed.getClassification()
+					: getKeywordClassifier().classify(Collections.singletonList(inputLocation));
+			LineClassifier.Result targets = getKeywordClassifier().addRegex(VALID_LINE, regex, literal)
+					.sampleUnmatched(VALID_LINE, MAX_CORRUPT_LINES_LOGGED).classify(targetLocations);
+			long corruptCount = targets.getLines(targetLocations) - targets.getCount(targetLocations, VALID_LINE);
+			for (String sample : targets.getSamples()) {
+				Logging.log("Corrupt log line not matching the expected regex at: " + sample);
+			}
+			if (corruptCount > MAX_CORRUPT_LINES_LOGGED) {
+				Logging.log("Only the first " + MAX_CORRUPT_LINES_LOGGED + " corrupt log lines were logged");
+			}
+			Logging.log("Total corrupt count: " + corruptCount);
+			if (((int) (corruptCount * 100) / lineCount) > PACKET_LOSS_PERCENTAGE) {
+				Logging.error("The number of corrupt packets % exceeds the threshold of: " + PACKET_LOSS_PERCENTAGE);
+			}
+			for (String name : input.getNames()) {
+				long difference = Math.abs(input.getCount(inputLocation, name)
+						- targets.getCount(targetLocations, name));
+				if (((int) (difference * 100) / lineCount) > PACKET_LOSS_PERCENTAGE) {
+					Logging.error("The number of '" + name + "' lines in the targets is off from the input by: "
+							+ difference);
+				}
+			}
+		} finally {
+			phase.close();
+		}
+
+		// Every file is read once for content and a second time for classification,
+		// except an input counted while it was fed
+		long bytes = fed == null ? new File(inputLocation).length() * 2 : 0;
+		for (String targetLocation : targetLocations) {
+			bytes += new File(targetLocation).length() * 2;
+		}
+		PerformanceUtil.recordRate("verificationMBps", bytes / (1024.0 * 1024.0), phase.getMillis());
+		Double agentRunMillis = PerformanceUtil.get("agentRunMillis");
+		if (agentRunMillis != null) {
+			PerformanceUtil.recordRate("eventsPerSec", lineCount, agentRunMillis.longValue());
 		}
 	}
 
+	/**
+	 * Get a classifier of the filter term of the splitter configuration and the
+	 * common severity tags
+	 * 
+	 * @return LineClassifier
+	 * @throws IOException
+	 * @throws CriblException
+	 */
+	private static LineClassifier getKeywordClassifier() throws IOException, CriblException {
+		LineClassifier classifier = new LineClassifier();
+		try (Reader reader = new InputStreamReader(new FileInputStream(SPLITTER_FILTER), StandardCharsets.UTF_8)) {
+			JsonObject filter = new Gson().fromJson(reader, JsonObject.class);
+			if (filter != null && filter.has("filter")) {
+				String term = filter.get("filter").getAsString();
+				classifier.addKeyword("filter:" + term, term);
+			}
+		}
+		for (String tag : SEVERITY_TAGS) {
+			classifier.addKeyword("severity:" + tag, tag);
+		}
+		return classifier;
+	}
+
 	/**
 	 * <b>Test case:</b> largeOneMillionEventsTest <br>
 	 * 
@@ -112,10 +388,12 @@ public class SplitterTests {
 	 * @throws CriblException
 	 */
 	@Test
+	@Pipelined
 	public void largeOneMillionEventsTest(Method method) throws IOException, CriblException {
 		runApplication(method.getName(), false);
 
-		basicVerification(currentInputLog, currentTargetLogs, "This is event number (\\d+)");
+		basicVerification(currentInputLog, currentTargetLogs, "This is event number (\\d+)",
+				"This is event number ");
 	}
 
 	/**
@@ -133,32 +411,24 @@ public class SplitterTests {
 	 * @throws CriblException
 	 */
 	@Test(dependsOnMethods = { "largeOneMillionEventsTest" })
+	@Pipelined
 	public void largeOneMillionEventsRandomnessTest(Method method) throws IOException, CriblException {
 		runApplication(method.getName(), false);
 
-		basicVerification(currentInputLog, currentTargetLogs, "This is event number (\\d+)");
+		basicVerification(currentInputLog, currentTargetLogs, "This is event number (\\d+)",
+				"This is event number ");
 
 		// Compare target outputs from prior test largeOneMillionEventsTest to confirm
-		// async randomness
-		try {
-			ArrayList<String> temp = new ArrayList<String>();
-			temp.add(0, currentTargetLogs.get(0));
-			VerificationUtil.verifyLogContent("logs/largeOneMillionEventsTest/events1.log", temp);
-			temp.add(0, currentTargetLogs.get(1));
-			VerificationUtil.verifyLogContent("logs/largeOneMillionEventsTest/events2.log", temp);
-			// Fail test if this is reached
-			Assert.assertTrue(false,
-					"The largeOneMillionEventsTest/events1.log and largeOneMillionEventsRandomnessTest/events1.log or "
-							+ "largeOneMillionEventsTest/events2.log and largeOneMillionEventsRandomnessTest/events2.log "
-							+ "match exactly and there is no randomness in the async behavior");
-		} catch (CriblException e) {
-			/**
-			 * When an exception if thrown this means:
-			 * logs/largeOneMillionEventsTest/events1.log does not match
-			 * logs/largeOneMillionEventsRandomnessTest/events1.log or similarly for 2. This
-			 * would confirm the async randomness of target outputs
-			 */
+		// async randomness. The Merkle trees are cached next to the logs
+		boolean identical = true;
+		for (MerkleTree.Divergence divergence : VerificationUtil
+				.compareRuns(getTargetLogs("largeOneMillionEventsTest"), currentTargetLogs)) {
+			identical &= divergence.isIdentical();
 		}
+		Assert.assertFalse(identical,
+				"The largeOneMillionEventsTest/events1.log and largeOneMillionEventsRandomnessTest/events1.log and "
+						+ "largeOneMillionEventsTest/events2.log and largeOneMillionEventsRandomnessTest/events2.log "
+						+ "match exactly and there is no randomness in the async behavior");
 	}
 
 	/**
@@ -175,6 +445,7 @@ public class SplitterTests {
 	 * @throws CriblException
 	 */
 	@Test
+	@Pipelined
 	public void emptyLogFileTest(Method method) throws IOException, CriblException {
 		runApplication(method.getName(), false);
 
@@ -220,12 +491,14 @@ public class SplitterTests {
 	 * @throws CriblException
 	 */
 	@Test
+	@Pipelined
 	public void oneLineLogFileTest(Method method) throws IOException, CriblException {
 		runApplication(method.getName(), false);
 
 		Assert.assertFalse(new File(currentTargetLogs.get(1)).exists());
 		currentTargetLogs.remove(1);
-		basicVerification(currentInputLog, currentTargetLogs, "This is event number (\\d+)");
+		basicVerification(currentInputLog, currentTargetLogs, "This is event number (\\d+)",
+				"This is event number ");
 	}
 
 	/**
@@ -242,10 +515,12 @@ public class SplitterTests {
 	 * @throws CriblException
 	 */
 	@Test
+	@Pipelined
 	public void sameLineLogFileTest(Method method) throws IOException, CriblException {
 		runApplication(method.getName(), false);
 
-		basicVerification(currentInputLog, currentTargetLogs, "(The quick brown fox jumps over the lazy dog)");
+		basicVerification(currentInputLog, currentTargetLogs, "(The quick brown fox jumps over the lazy dog)",
+				"The quick brown fox jumps over the lazy dog");
 	}
 
 	/**
@@ -262,10 +537,11 @@ public class SplitterTests {
 	 * @throws CriblException
 	 */
 	@Test
+	@Pipelined
 	public void specialCharactersTest(Method method) throws IOException, CriblException {
 		runApplication(method.getName(), false);
 
-		basicVerification(currentInputLog, currentTargetLogs, ".{50}");
+		basicVerification(currentInputLog, currentTargetLogs, ".{50}", null);
 	}
 
 	/**
@@ -282,6 +558,7 @@ public class SplitterTests {
 	 * @throws CriblException
 	 */
 	@Test
+	@Pipelined
 	public void sampleJpegFileTest(Method method) throws IOException, CriblException {
 		runApplication(method.getName(), false);
 
@@ -303,6 +580,7 @@ public class SplitterTests {
 	 * @throws CriblException
 	 */
 	@Test
+	@Pipelined
 	public void utf8FileTest(Method method) throws IOException, CriblException {
 		runApplication(method.getName(), false);
 
@@ -326,6 +604,7 @@ public class SplitterTests {
 	 * @throws CriblException
 	 */
 	@Test
+	@Pipelined
 	public void newLineOneTest(Method method) throws IOException, CriblException {
 		runApplication(method.getName(), false);
 
@@ -338,6 +617,7 @@ public class SplitterTests {
 	}
 
 	@Test
+	@Pipelined
 	public void newLineTwoTest(Method method) throws IOException, CriblException {
 		runApplication(method.getName(), false);
 
@@ -350,6 +630,7 @@ public class SplitterTests {
 	}
 
 	@Test
+	@Pipelined
 	public void newLineThreeTest(Method method) throws IOException, CriblException {
 		runApplication(method.getName(), false);
 
@@ -362,6 +643,7 @@ public class SplitterTests {
 	}
 
 	@Test
+	@Pipelined
 	public void newLineManyTest(Method method) throws IOException, CriblException {
 		runApplication(method.getName(), false);
 
@@ -387,11 +669,13 @@ public class SplitterTests {
 	 * @throws CriblException
 	 */
 	@Test
+	@Pipelined
 	public void apacheLogsTest(Method method) throws IOException, CriblException {
 		runApplication(method.getName(), false);
 
 		basicVerification(currentInputLog, currentTargetLogs,
-				"^([\\d.]+) (\\S+) (\\S+) \\[([\\w:/]+\\s[+-]\\d{4})\\] \"(.+?)\" (\\d{3}) (\\d+) \"([^\"]+)\" \"(.+?)\"");
+				"^([\\d.]+) (\\S+) (\\S+) \\[([\\w:/]+\\s[+-]\\d{4})\\] \"(.+?)\" (\\d{3}) (\\d+) \"([^\"]+)\" \"(.+?)\"",
+				null);
 	}
 
 	/**
@@ -408,6 +692,7 @@ public class SplitterTests {
 	 * @throws CriblException
 	 */
 	@Test
+	@Pipelined
 	public void languageEncodingTest(Method method) throws IOException, CriblException {
 		runApplication(method.getName(), false);
 
@@ -416,8 +701,331 @@ public class SplitterTests {
 		VerificationUtil.verifyLogSizes(currentInputLog, currentTargetLogs);
 	}
 
+	/**
+	 * <b>Test case:</b> fanInLoadTest <br>
+	 * 
+	 * <b>Purpose:<b> The purpose of this test is to see how the splitter behaves
+	 * when many agents feed it at the same time like in production. The test
+	 * harness plays the agents with the FanInLoadClient instead of the agent
+	 * container <br>
+	 * 
+	 * <b>Goal:<b> Verify every connection is accepted and that the splitter opens
+	 * one connection to each target per agent. Connect latency and aggregate
+	 * throughput are recorded and the fairness of the delivery to the targets is
+	 * recorded from the target logs and must be at least MIN_DELIVERY_FAIRNESS.
+	 * The combined content of the targets must exactly match everything sent and
+	 * the corrupt lines, like lines of different agents interleaving at the
+	 * targets, meet the same threshold as other tests
+	 * 
+	 * @param method
+	 * @throws IOException
+	 * @throws CriblException
+	 */
+	@Test
+	public void fanInLoadTest(Method method) throws IOException, CriblException {
+		String name = method.getName();
+		Files.createDirectories(Paths.get("logs/" + name));
+		currentTargetLogs = new ArrayList<String>();
+		currentTargetLogs.add("logs/" + name + "/events1.log");
+		currentTargetLogs.add("logs/" + name + "/events2.log");
+
+		Phase composeUp = Phase.begin("composeUp");
+		try {
+			ResourceSampler sampler = ResourceSampler.current();
+			if (sampler != null) {
+				sampler.attachContainers(TARGET1, TARGET2, SPLITTER);
+			}
+			SystemUtil.runCommand(FAN_IN_COMPOSE + " up --build -d splitter", null);
+			if (sampler != null) {
+				sampler.containersStarted();
+			}
+			waitForContainerLog(SPLITTER, "App listening on port", FAN_IN_TIMEOUT_MILLIS);
+		} finally {
+			composeUp.close();
+		}
+
+		FanInLoadClient.Result result;
+		try (Phase phase = Phase.begin("fanInLoad")) {
+			result = new FanInLoadClient("localhost", FAN_IN_PORT, FAN_IN_CONNECTIONS, FAN_IN_EVENTS,
+					FAN_IN_EVENTS_PER_SECOND, FAN_IN_EVENT_LOOPS).run(FAN_IN_TIMEOUT_MILLIS);
+			phase.addBytes(result.getTotalBytes());
+		}
+		Assert.assertEquals(result.getFailed(), 0, "Agent connections failed to connect or send all events");
+		PerformanceUtil.record("connectP99Millis", result.getConnectMillis(99));
+		PerformanceUtil.recordRate("fanInMBps", result.getTotalBytes() / (1024.0 * 1024.0),
+				result.getDurationMillis());
+		PerformanceUtil.recordRate("fanInEventsPerSec", result.getTotalEvents(), result.getDurationMillis());
+
+		// Targets append asynchronously so wait until everything sent is written
+		Phase targetFlush = Phase.begin("targetFlush");
+		try {
+			long deadline = System.currentTimeMillis() + FAN_IN_TIMEOUT_MILLIS;
+			long written = 0;
+			while (written < result.getTotalBytes() && System.currentTimeMillis() < deadline) {
+				sleep(1000);
+				written = getContainerFileSize(TARGET1) + getContainerFileSize(TARGET2);
+			}
+			Logging.log("Targets have written " + written + " of " + result.getTotalBytes() + " bytes sent");
+		} finally {
+			targetFlush.close();
+		}
+
+		// The splitter opens a fresh connection to every target per agent connection
+		String splitterLog = SystemUtil.runCommand("docker logs " + SPLITTER, null);
+		int targetConnections = splitterLog.split("Connected to", -1).length - 1;
+		Logging.log("The splitter opened " + targetConnections + " target connections for " + FAN_IN_CONNECTIONS
+				+ " agent connections");
+		Assert.assertEquals(targetConnections, FAN_IN_CONNECTIONS * 2);
+
+		try (Phase phase = Phase.begin("dockerCp")) {
+			SystemUtil.runCommand("docker cp " + TARGET1 + ":" + DOCKER_LOGS + " ./" + currentTargetLogs.get(0), null);
+			SystemUtil.runCommand("docker cp " + TARGET2 + ":" + DOCKER_LOGS + " ./" + currentTargetLogs.get(1), null);
+			phase.addFiles(currentTargetLogs);
+		}
+		Phase composeDown = Phase.begin("composeDown");
+		try {
+			SystemUtil.runCommand("docker-compose down", null);
+		} finally {
+			composeDown.close();
+		}
+
+		long lineCount = VerificationUtil.verifyLogHistogram(result.getHistogram(), currentTargetLogs);
+		long corruptCount = VerificationUtil.getCorruptLogCount(currentTargetLogs, FanInLoadClient.EVENT_PATTERN);
+		if (lineCount > 0 && ((int) (corruptCount * 100) / lineCount) > PACKET_LOSS_PERCENTAGE) {
+			Logging.error("The number of corrupt packets % exceeds the threshold of: " + PACKET_LOSS_PERCENTAGE);
+		}
+		double fairness = FanInLoadClient.getDeliveryFairness(currentTargetLogs, FAN_IN_CONNECTIONS);
+		PerformanceUtil.record("deliveryFairness", fairness);
+		if (fairness < MIN_DELIVERY_FAIRNESS) {
+			Logging.error("The delivery fairness index: " + fairness + " is below the threshold of: "
+					+ MIN_DELIVERY_FAIRNESS);
+		}
+	}
+
+	/**
+	 * <b>Test case:</b> captureReplayTest <br>
+	 * 
+	 * <b>Purpose:<b> The purpose of this test is to record the exact byte streams
+	 * the splitter sends to each target so a bad split can be analyzed and
+	 * benchmarked again without Docker. The splitter's targets are pointed at the
+	 * CaptureServer in the test harness which records each connection with its
+	 * chunk boundaries and timestamps <br>
+	 * 
+	 * <b>Goal:<b> Verify the splitter opens one stream per target and the replayed
+	 * streams pass the same basic verification as the target logs. Replaying the
+	 * capture with the original timing to a target stand-in must deliver the
+	 * same content per stream. Run with -Dcapture.replayOnly=true to only replay
+	 * the capture of a prior run
+	 * 
+	 * @param method
+	 * @throws IOException
+	 * @throws CriblException
+	 */
+	@Test
+	public void captureReplayTest(Method method) throws IOException, CriblException {
+		String name = method.getName();
+		String captureDirectory = "logs/" + name + "/capture";
+		currentInputLog = "inputs/" + name + ".log";
+		long inputSize = new File(currentInputLog).length();
+
+		if (!CAPTURE_REPLAY_ONLY) {
+			Phase copyInput = Phase.begin("copyInput").addFile(currentInputLog);
+			try {
+				SystemUtil.copyFile(new File(currentInputLog), new File(AGENT_INPUT));
+			} finally {
+				copyInput.close();
+			}
+			try (CaptureServer server = new CaptureServer(CAPTURE_PORT, captureDirectory)) {
+				Phase composeUp = Phase.begin("composeUp");
+				try {
+					ResourceSampler sampler = ResourceSampler.current();
+					if (sampler != null) {
+						sampler.attachContainers(SPLITTER, AGENT);
+					}
+					SystemUtil.runCommand(CAPTURE_COMPOSE + " up --build --no-deps splitter agent", "agent_1 exited");
+				} finally {
+					composeUp.close();
+				}
+				try (Phase phase = Phase.begin("captureFlush")) {
+					phase.addBytes(server.awaitBytes(inputSize, CAPTURE_TIMEOUT_MILLIS));
+				}
+			}
+			Phase composeDown = Phase.begin("composeDown");
+			try {
+				SystemUtil.runCommand("docker-compose down", null);
+			} finally {
+				composeDown.close();
+			}
+		}
+
+		StreamReplayer replayer = new StreamReplayer(captureDirectory);
+		Assert.assertEquals(replayer.getStreams().size(), 2, "Expected one captured stream per target");
+		currentTargetLogs = replayer.replayToFiles("logs/" + name + "/replay");
+		basicVerification(currentInputLog, currentTargetLogs, "This is event number (\\d+)",
+				"This is event number ");
+
+		// Replay to a target stand-in with the original timing and capture it again
+		String standInDirectory = "logs/" + name + "/standIn";
+		try (CaptureServer standIn = new CaptureServer(0, standInDirectory)) {
+			replayer.replayTo("localhost", standIn.getPort(), true);
+			standIn.awaitBytes(inputSize, CAPTURE_TIMEOUT_MILLIS);
+		}
+		ArrayList<String> standInLogs = new StreamReplayer(standInDirectory).replayToFiles(standInDirectory);
+		Assert.assertEquals(standInLogs.size(), currentTargetLogs.size());
+		for (int i = 0; i < currentTargetLogs.size(); i++) {
+			ArrayList<String> standInLog = new ArrayList<String>();
+			standInLog.add(standInLogs.get(i));
+			VerificationUtil.verifyLogContent(currentTargetLogs.get(i), standInLog);
+			VerificationUtil.verifyLogSizes(currentTargetLogs.get(i), standInLog);
+		}
+	}
+
+	/**
+	 * <b>Test case:</b> fifoFeedTest <br>
+	 * 
+	 * <b>Purpose:<b> The purpose of this test is to see how the application behaves
+	 * with a large volume of input that is never written to disk. The agent's
+	 * monitored file is a named pipe that the test harness streams generated
+	 * events into, or an existing input with -Dfifo.input=<file> <br>
+	 * 
+	 * <b>Goal:<b> Verify the target content exactly matches the byte histogram
+	 * counted while feeding and the total size matches the bytes fed. The SHA-256
+	 * of generated events is computed once while generating them and the SHA-256
+	 * of an existing input must match the one stored in the SHA256SUMS next to
+	 * it. Either is saved to input.sha256 in the test logs. Lastly the corrupt lines of generated events
+	 * meet the same threshold as other tests
+	 * 
+	 * @param method
+	 * @throws IOException
+	 * @throws CriblException
+	 */
+	@Test
+	public void fifoFeedTest(Method method) throws IOException, CriblException {
+		String name = method.getName();
+		Files.createDirectories(Paths.get("logs/" + name));
+		currentTargetLogs = getTargetLogs(name);
+
+		FifoFeeder.Result fed;
+		try {
+			// The image is built first as the build context can't contain a FIFO
+			Phase composeBuild = Phase.begin("composeBuild");
+			try {
+				SystemUtil.runCommand(FIFO_COMPOSE + " build", null);
+			} finally {
+				composeBuild.close();
+			}
+			FifoFeeder.createFifo(AGENT_INPUT);
+			FifoFeeder feeder = new FifoFeeder(AGENT_INPUT, FIFO_INPUT.isEmpty() ? new EventInputStream(FIFO_EVENTS)
+					: new FileInputStream(FIFO_INPUT));
+			try (Phase phase = Phase.begin("composeUp")) {
+				ResourceSampler sampler = ResourceSampler.current();
+				if (sampler != null) {
+					sampler.attachContainers(TARGET1, TARGET2, SPLITTER, AGENT);
+				}
+				SystemUtil.runCommand(FIFO_COMPOSE + " up", "agent_1 exited");
+				fed = feeder.await(FIFO_TIMEOUT_MILLIS);
+				phase.addBytes(fed.getBytes());
+			}
+		} finally {
+			// A FIFO left at the agent input would block the next test copying its input
+			Files.deleteIfExists(Paths.get(AGENT_INPUT));
+		}
+		if (!FIFO_INPUT.isEmpty()) {
+			verifyStoredSha256(FIFO_INPUT, fed);
+		}
+		Files.write(Paths.get("logs/" + name + "/input.sha256"),
+				(fed.getSha256() + "\n").getBytes(StandardCharsets.UTF_8));
+
+		try (Phase phase = Phase.begin("dockerCp")) {
+			SystemUtil.runCommand("docker cp " + TARGET1 + ":" + DOCKER_LOGS + " ./" + currentTargetLogs.get(0), null);
+			SystemUtil.runCommand("docker cp " + TARGET2 + ":" + DOCKER_LOGS + " ./" + currentTargetLogs.get(1), null);
+			phase.addFiles(currentTargetLogs);
+		}
+		Phase composeDown = Phase.begin("composeDown");
+		try {
+			SystemUtil.runCommand("docker-compose down", null);
+		} finally {
+			composeDown.close();
+		}
+
+		long lineCount = VerificationUtil.verifyLogHistogram(fed.getHistogram(), currentTargetLogs);
+		Assert.assertEquals(new File(currentTargetLogs.get(0)).length() + new File(currentTargetLogs.get(1)).length(),
+				fed.getBytes());
+		if (FIFO_INPUT.isEmpty()) {
+			long corruptCount = VerificationUtil.getCorruptLogCount(currentTargetLogs, EventInputStream.EVENT_PATTERN);
+			if (((int) (corruptCount * 100) / lineCount) > PACKET_LOSS_PERCENTAGE) {
+				Logging.error("The number of corrupt packets % exceeds the threshold of: " + PACKET_LOSS_PERCENTAGE);
+			}
+		}
+	}
+
+	/**
+	 * Poll the logs of a container until the text appears
+	 * 
+	 * @param container     the container name
+	 * @param text          the text to wait for
+	 * @param timeoutMillis how long to wait
+	 * @throws IOException
+	 * @throws CriblException
+	 */
+	private static void waitForContainerLog(String container, String text, long timeoutMillis)
+			throws IOException, CriblException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (!SystemUtil.runCommand("docker logs " + container, text).contains(text)) {
+			if (System.currentTimeMillis() > deadline) {
+				Logging.error("Timed out waiting for '" + text + "' in the logs of: " + container);
+			}
+			sleep(1000);
+		}
+	}
+
+	/**
+	 * @param container the target container name
+	 * @return the size of the events.log in the container or 0 when not created
+	 *         yet
+	 * @throws IOException
+	 * @throws CriblException
+	 */
+	private static long getContainerFileSize(String container) throws IOException, CriblException {
+		String output = SystemUtil.runCommand("docker exec " + container + " stat -c %s " + DOCKER_LOGS, null);
+		try {
+			return Long.parseLong(output.trim());
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * @param container the container name
+	 * @return the milliseconds from the container starting to exiting or -1 when
+	 *         it has not exited
+	 * @throws IOException
+	 * @throws CriblException
+	 */
+	private static long getContainerRunMillis(String container) throws IOException, CriblException {
+		String output = SystemUtil.runCommand(
+				"docker inspect -f {{.State.StartedAt}},{{.State.FinishedAt}} " + container, null);
+		String[] times = output.trim().split(",");
+		try {
+			return Duration.between(Instant.parse(times[0]), Instant.parse(times[1])).toMillis();
+		} catch (DateTimeParseException | ArrayIndexOutOfBoundsException e) {
+			return -1;
+		}
+	}
+
+	private static void sleep(long millis) throws CriblException {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			Logging.error("Interrupted while waiting");
+		}
+	}
+
 	@AfterMethod(alwaysRun = true)
 	public void afterMethod() throws IOException, CriblException {
+		// Let an environment started early finish before tearing down
+		PipelineScheduler.awaitAll();
 		// Run in case anything test fails
 		SystemUtil.runCommand("docker-compose down", null);
 	}
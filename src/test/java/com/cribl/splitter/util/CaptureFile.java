@@ -0,0 +1,200 @@
+package com.cribl.splitter.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The append only binary format of captured TCP streams. A capture directory
+ * has two files
+ * <ul>
+ * <li>capture.bin the chunks in the order they were received, each as stream
+ * id (int), nanos since the capture started (long), length (int) and the
+ * bytes</li>
+ * <li>capture.idx one fixed 24 byte entry per chunk of stream id (int), offset
+ * of the bytes in capture.bin (long), length (int) and nanos (long) so a
+ * stream can be summarized or read without scanning all the data</li>
+ * </ul>
+ * Both files start with a magic number and version. The data file has
+ * everything needed to rebuild the index if it is lost.
+ *
+ */
+public class CaptureFile {
+	public static final String DATA = "capture.bin";
+	public static final String INDEX = "capture.idx";
+	public static final int VERSION = 1;
+	private static final int DATA_MAGIC = 0x43524244; // CRBD
+	private static final int INDEX_MAGIC = 0x43524249; // CRBI
+	private static final int HEADER_SIZE = 8;
+	private static final int CHUNK_HEADER_SIZE = 16;
+
+	/**
+	 * One chunk of a stream as it was received
+	 */
+	public static class Chunk {
+		private final int stream;
+		private final long offset;
+		private final int length;
+		private final long nanos;
+
+		public Chunk(int stream, long offset, int length, long nanos) {
+			this.stream = stream;
+			this.offset = offset;
+			this.length = length;
+			this.nanos = nanos;
+		}
+
+		public int getStream() {
+			return stream;
+		}
+
+		/**
+		 * @return the offset of the chunk bytes in the data file
+		 */
+		public long getOffset() {
+			return offset;
+		}
+
+		public int getLength() {
+			return length;
+		}
+
+		/**
+		 * @return when the chunk was received in nanos since the capture started
+		 */
+		public long getNanos() {
+			return nanos;
+		}
+	}
+
+	/**
+	 * Appends chunks of any number of streams to a capture directory. Safe to use
+	 * from one thread per stream
+	 */
+	public static class Writer implements Closeable {
+		private final DataOutputStream data;
+		private final DataOutputStream index;
+		private final long startNanos = System.nanoTime();
+		private long offset = HEADER_SIZE;
+
+		public Writer(String directory) throws IOException {
+			Files.createDirectories(Paths.get(directory));
+			data = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(new File(directory, DATA)), 64 * 1024));
+			index = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(new File(directory, INDEX)), 64 * 1024));
+			data.writeInt(DATA_MAGIC);
+			data.writeInt(VERSION);
+			index.writeInt(INDEX_MAGIC);
+			index.writeInt(VERSION);
+		}
+
+		/**
+		 * Append a chunk received on a stream
+		 *
+		 * @param stream the stream id
+		 * @param buffer the received bytes
+		 * @param length the number of bytes received
+		 * @throws IOException
+		 */
+		public synchronized void write(int stream, byte[] buffer, int length) throws IOException {
+			long nanos = System.nanoTime() - startNanos;
+			data.writeInt(stream);
+			data.writeLong(nanos);
+			data.writeInt(length);
+			data.write(buffer, 0, length);
+			index.writeInt(stream);
+			index.writeLong(offset + CHUNK_HEADER_SIZE);
+			index.writeInt(length);
+			index.writeLong(nanos);
+			offset += CHUNK_HEADER_SIZE + length;
+		}
+
+		@Override
+		public synchronized void close() throws IOException {
+			data.close();
+			index.close();
+		}
+	}
+
+	/**
+	 * Read the index of a capture
+	 *
+	 * @param directory the capture directory
+	 * @return the chunks in the order they were received
+	 * @throws IOException
+	 * @throws CriblException
+	 */
+	public static List<Chunk> readIndex(String directory) throws IOException, CriblException {
+		List<Chunk> chunks = new ArrayList<Chunk>();
+		try (DataInputStream index = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(new File(directory, INDEX)), 64 * 1024))) {
+			if (index.readInt() != INDEX_MAGIC || index.readInt() != VERSION) {
+				Logging.error("Not a version " + VERSION + " capture index in: " + directory);
+			}
+			while (true) {
+				int stream;
+				try {
+					stream = index.readInt();
+				} catch (EOFException e) {
+					break;
+				}
+				chunks.add(new Chunk(stream, index.readLong(), index.readInt(), index.readLong()));
+			}
+		}
+		return chunks;
+	}
+
+	/**
+	 * Open the data of a capture positioned at the first chunk
+	 *
+	 * @param directory the capture directory
+	 * @return DataInputStream
+	 * @throws IOException
+	 * @throws CriblException
+	 */
+	public static DataInputStream openData(String directory) throws IOException, CriblException {
+		DataInputStream data = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(new File(directory, DATA)), 64 * 1024));
+		if (data.readInt() != DATA_MAGIC || data.readInt() != VERSION) {
+			data.close();
+			Logging.error("Not a version " + VERSION + " capture data file in: " + directory);
+		}
+		return data;
+	}
+
+	/**
+	 * Read the next chunk header and bytes from the data. The chunk is sized to
+	 * the buffer when the buffer is too small
+	 *
+	 * @param data   the data from openData
+	 * @param chunk  the chunk from the index to read next
+	 * @param buffer the buffer to read into
+	 * @return the buffer the bytes were read into
+	 * @throws IOException
+	 * @throws CriblException
+	 */
+	public static byte[] readChunk(DataInputStream data, Chunk chunk, byte[] buffer)
+			throws IOException, CriblException {
+		int stream = data.readInt();
+		data.readLong();
+		int length = data.readInt();
+		if (stream != chunk.getStream() || length != chunk.getLength()) {
+			Logging.error("The capture data does not match the index at offset: " + chunk.getOffset());
+		}
+		byte[] bytes = buffer.length >= length ? buffer : new byte[length];
+		data.readFully(bytes, 0, length);
+		return bytes;
+	}
+}
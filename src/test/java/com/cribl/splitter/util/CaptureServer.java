@@ -0,0 +1,159 @@
+package com.cribl.splitter.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A target stand-in that accepts the splitter's target connections and records
+ * every stream with its chunk boundaries and timestamps to a capture directory
+ * with CaptureFile. Each accepted connection is a new stream numbered in the
+ * order they were accepted.
+ *
+ * The splitter never closes its target connections so the test waits for the
+ * expected bytes with awaitBytes before closing the server.
+ *
+ */
+public class CaptureServer implements Closeable {
+	private final ServerSocket server;
+	private final CaptureFile.Writer writer;
+	private final List<Socket> sockets = new ArrayList<Socket>();
+	private final List<Thread> readers = new ArrayList<Thread>();
+	private final AtomicLong bytes = new AtomicLong();
+	private final Thread acceptor;
+
+	/**
+	 * Start listening and recording
+	 *
+	 * @param port      the port to listen on on all interfaces or 0 for any free
+	 *                  port
+	 * @param directory the capture directory
+	 * @throws IOException
+	 */
+	public CaptureServer(int port, String directory) throws IOException {
+		writer = new CaptureFile.Writer(directory);
+		server = new ServerSocket();
+		server.setReuseAddress(true);
+		server.bind(new InetSocketAddress(port));
+		Logging.log("Capturing target connections on port " + server.getLocalPort() + " to: " + directory);
+		acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				accept();
+			}
+		}, "capture-acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	private void accept() {
+		while (!server.isClosed()) {
+			final Socket socket;
+			try {
+				socket = server.accept();
+			} catch (IOException e) {
+				// Closed
+				return;
+			}
+			synchronized (sockets) {
+				final int stream = sockets.size();
+				sockets.add(socket);
+				Logging.log("Capturing stream " + stream + " from: " + socket.getRemoteSocketAddress());
+				Thread reader = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						record(stream, socket);
+					}
+				}, "capture-stream-" + stream);
+				reader.setDaemon(true);
+				readers.add(reader);
+				reader.start();
+			}
+		}
+	}
+
+	private void record(int stream, Socket socket) {
+		byte[] buffer = new byte[64 * 1024];
+		try (InputStream input = socket.getInputStream()) {
+			int read;
+			while ((read = input.read(buffer)) > 0) {
+				writer.write(stream, buffer, read);
+				bytes.addAndGet(read);
+			}
+		} catch (IOException e) {
+			// Closed by the server or peer
+		}
+	}
+
+	/**
+	 * @return the port the server is listening on
+	 */
+	public int getPort() {
+		return server.getLocalPort();
+	}
+
+	/**
+	 * @return the bytes recorded so far across all streams
+	 */
+	public long getBytes() {
+		return bytes.get();
+	}
+
+	/**
+	 * @return the number of streams accepted so far
+	 */
+	public int getStreams() {
+		synchronized (sockets) {
+			return sockets.size();
+		}
+	}
+
+	/**
+	 * Wait until the expected number of bytes have been recorded
+	 *
+	 * @param expected      the bytes expected across all streams
+	 * @param timeoutMillis how long to wait
+	 * @return the bytes recorded
+	 * @throws CriblException
+	 */
+	public long awaitBytes(long expected, long timeoutMillis) throws CriblException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (bytes.get() < expected && System.currentTimeMillis() < deadline) {
+			try {
+				Thread.sleep(100);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				Logging.error("Interrupted waiting for the captured bytes");
+			}
+		}
+		Logging.log("Captured " + bytes.get() + " of " + expected + " bytes over " + getStreams() + " streams");
+		return bytes.get();
+	}
+
+	@Override
+	public void close() throws IOException {
+		server.close();
+		synchronized (sockets) {
+			for (Socket socket : sockets) {
+				socket.close();
+			}
+		}
+		try {
+			acceptor.join();
+			synchronized (sockets) {
+				for (Thread reader : readers) {
+					reader.join();
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		writer.close();
+	}
+}
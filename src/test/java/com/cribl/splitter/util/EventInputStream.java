@@ -0,0 +1,62 @@
+package com.cribl.splitter.util;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Generates 'This is event number <n>' lines on the fly so large inputs can be
+ * streamed without ever being stored on disk. Only one line is held in memory
+ * at a time.
+ *
+ */
+public class EventInputStream extends InputStream {
+	// The regex of a valid generated log line
+	public static final String EVENT_PATTERN = "This is event number (\\d+)";
+
+	private final long events;
+	private long next;
+	private byte[] line = new byte[0];
+	private int position;
+
+	/**
+	 * @param events the number of lines to generate
+	 */
+	public EventInputStream(long events) {
+		this.events = events;
+	}
+
+	private boolean nextLine() {
+		if (next == events) {
+			return false;
+		}
+		line = ("This is event number " + next++ + "\n").getBytes(StandardCharsets.UTF_8);
+		position = 0;
+		return true;
+	}
+
+	@Override
+	public int read() {
+		if (position == line.length && !nextLine()) {
+			return -1;
+		}
+		return line[position++] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] buffer, int offset, int length) {
+		if (length == 0) {
+			return 0;
+		}
+		int read = 0;
+		while (read < length) {
+			if (position == line.length && !nextLine()) {
+				break;
+			}
+			int count = Math.min(length - read, line.length - position);
+			System.arraycopy(line, position, buffer, offset + read, count);
+			position += count;
+			read += count;
+		}
+		return read == 0 ? -1 : read;
+	}
+}
@@ -0,0 +1,408 @@
+package com.cribl.splitter.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Load generator that plays many agents connecting to one splitter. The
+ * connections are spread over a small number of event loop threads each with
+ * its own NIO selector so thousands of concurrent connections can be opened.
+ * Every connection streams 'Agent <id> event number <n>' lines at a configured
+ * rate until it has sent its events and then closes.
+ *
+ * A byte histogram of everything written to the connections that did not fail
+ * is kept so the combined output of the targets can be verified with
+ * VerificationUtil.verifyLogHistogram without writing the generated input to
+ * disk. How fairly the splitter served the
+ * agents is measured from the target logs with getDeliveryFairness since the
+ * client paces every connection the same.
+ *
+ */
+public class FanInLoadClient {
+	// The regex of a valid generated log line
+	public static final String EVENT_PATTERN = "Agent (\\d+) event number (\\d+)";
+
+	// How often each event loop wakes up to send events that became due
+	private static final long TICK_MILLIS = 10;
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final int MAX_EVENT_SIZE = 64;
+
+	private final String host;
+	private final int port;
+	private final int connections;
+	private final int eventsPerConnection;
+	private final int eventsPerSecond;
+	private final int eventLoops;
+
+	/**
+	 * @param host                the splitter host
+	 * @param port                the splitter port
+	 * @param connections         the number of concurrent agent connections
+	 * @param eventsPerConnection the number of events each connection sends
+	 * @param eventsPerSecond     the rate each connection sends at or 0 for as
+	 *                            fast as possible
+	 * @param eventLoops          the number of event loop threads
+	 */
+	public FanInLoadClient(String host, int port, int connections, int eventsPerConnection, int eventsPerSecond,
+			int eventLoops) {
+		this.host = host;
+		this.port = port;
+		this.connections = connections;
+		this.eventsPerConnection = eventsPerConnection;
+		this.eventsPerSecond = eventsPerSecond;
+		this.eventLoops = Math.max(1, Math.min(eventLoops, connections));
+	}
+
+	/**
+	 * State of one agent connection
+	 */
+	private static class Connection {
+		final int id;
+		final SocketChannel channel;
+		final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		// Only the bytes actually written, what is queued in the buffer may never be
+		final long[] histogram = new long[256];
+		long connectStartNanos;
+		long connectedNanos;
+		long eventsQueued;
+		long bytesSent;
+		boolean pending;
+		boolean done;
+		boolean failed;
+
+		Connection(int id, SocketChannel channel) {
+			this.id = id;
+			this.channel = channel;
+		}
+	}
+
+	/**
+	 * One event loop thread with its share of the connections
+	 */
+	private class EventLoop implements Callable<EventLoop> {
+		final List<Connection> owned = new ArrayList<Connection>();
+		final int firstId;
+		final int count;
+		final long deadlineNanos;
+		int remaining;
+
+		EventLoop(int firstId, int count, long deadlineNanos) {
+			this.firstId = firstId;
+			this.count = count;
+			this.deadlineNanos = deadlineNanos;
+		}
+
+		@Override
+		public EventLoop call() throws IOException {
+			InetSocketAddress address = new InetSocketAddress(host, port);
+			try (Selector selector = Selector.open()) {
+				for (int i = 0; i < count; i++) {
+					SocketChannel channel = SocketChannel.open();
+					channel.configureBlocking(false);
+					channel.socket().setTcpNoDelay(true);
+					Connection connection = new Connection(firstId + i, channel);
+					owned.add(connection);
+					connection.connectStartNanos = System.nanoTime();
+					try {
+						if (channel.connect(address)) {
+							connection.connectedNanos = System.nanoTime();
+							channel.register(selector, 0, connection);
+						} else {
+							channel.register(selector, SelectionKey.OP_CONNECT, connection);
+						}
+					} catch (IOException e) {
+						fail(connection);
+						continue;
+					}
+					remaining++;
+				}
+
+				while (remaining > 0 && System.nanoTime() < deadlineNanos) {
+					selector.select(TICK_MILLIS);
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						Connection connection = (Connection) key.attachment();
+						if (!key.isValid()) {
+							continue;
+						}
+						if (key.isConnectable()) {
+							try {
+								connection.channel.finishConnect();
+								connection.connectedNanos = System.nanoTime();
+								key.interestOps(0);
+							} catch (IOException e) {
+								fail(connection);
+								remaining--;
+							}
+						} else if (key.isWritable()) {
+							send(connection, key);
+						}
+					}
+
+					// Send events that became due for all connected connections
+					for (Connection connection : owned) {
+						if (connection.connectedNanos > 0 && !connection.done && !connection.pending) {
+							send(connection, connection.channel.keyFor(selector));
+						}
+					}
+				}
+			}
+
+			for (Connection connection : owned) {
+				if (!connection.done) {
+					fail(connection);
+				}
+			}
+			return this;
+		}
+
+		private void send(Connection connection, SelectionKey key) {
+			try {
+				if (!connection.pending) {
+					fill(connection);
+				}
+				ByteBuffer buffer = connection.buffer;
+				int start = buffer.position();
+				int written = connection.channel.write(buffer);
+				for (int i = start; i < start + written; i++) {
+					connection.histogram[buffer.get(i) & 0xff]++;
+				}
+				connection.bytesSent += written;
+				if (connection.buffer.hasRemaining()) {
+					connection.pending = true;
+					key.interestOps(SelectionKey.OP_WRITE);
+					return;
+				}
+				connection.pending = false;
+				connection.buffer.clear();
+				key.interestOps(0);
+				if (connection.eventsQueued == eventsPerConnection) {
+					connection.done = true;
+					connection.channel.close();
+					remaining--;
+				}
+			} catch (IOException e) {
+				fail(connection);
+				remaining--;
+			}
+		}
+
+		/**
+		 * Fill the buffer with the events due so far at the configured rate
+		 */
+		private void fill(Connection connection) {
+			long due = eventsPerConnection;
+			if (eventsPerSecond > 0) {
+				long elapsedNanos = System.nanoTime() - connection.connectedNanos;
+				due = Math.min(eventsPerConnection, 1 + elapsedNanos * eventsPerSecond / 1000000000L);
+			}
+			ByteBuffer buffer = connection.buffer;
+			while (connection.eventsQueued < due && buffer.remaining() >= MAX_EVENT_SIZE) {
+				byte[] event = ("Agent " + connection.id + " event number " + connection.eventsQueued + "\n")
+						.getBytes(StandardCharsets.UTF_8);
+				buffer.put(event);
+				connection.eventsQueued++;
+			}
+			buffer.flip();
+		}
+
+		private void fail(Connection connection) {
+			connection.failed = true;
+			connection.done = true;
+			try {
+				connection.channel.close();
+			} catch (IOException e) {
+				// Already broken
+			}
+		}
+	}
+
+	/**
+	 * Open all the connections and stream the events
+	 *
+	 * @param timeoutMillis how long to wait for all connections to finish
+	 * @return Result
+	 * @throws IOException
+	 * @throws CriblException
+	 */
+	public Result run(long timeoutMillis) throws IOException, CriblException {
+		Logging.log("Starting " + connections + " agent connections to " + host + ":" + port + " over " + eventLoops
+				+ " event loops sending " + eventsPerConnection + " events at " + eventsPerSecond
+				+ " events/sec each");
+		long startNanos = System.nanoTime();
+		long deadlineNanos = startNanos + timeoutMillis * 1000000;
+		ExecutorService executor = Executors.newFixedThreadPool(eventLoops);
+		List<Future<EventLoop>> futures = new ArrayList<Future<EventLoop>>();
+		int firstId = 0;
+		for (int i = 0; i < eventLoops; i++) {
+			int count = connections / eventLoops + (i < connections % eventLoops ? 1 : 0);
+			futures.add(executor.submit(new EventLoop(firstId, count, deadlineNanos)));
+			firstId += count;
+		}
+
+		Result result = new Result();
+		try {
+			for (Future<EventLoop> future : futures) {
+				result.add(future.get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			Logging.error("Interrupted waiting for the agent connections");
+		} catch (ExecutionException e) {
+			Logging.error("An event loop failed: " + e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+		result.durationNanos = System.nanoTime() - startNanos;
+		result.log();
+		return result;
+	}
+
+	/**
+	 * Jain's fairness index of how evenly the splitter delivered the events of
+	 * each agent. The target logs are in the order the events arrived so the
+	 * events of each agent in the first half of every log are counted, a starved
+	 * agent has fewer of its events there. 1 is perfectly fair and 1/n is when
+	 * the first halves only have one agent's events
+	 *
+	 * @param targetLocations the target logs
+	 * @param connections     the number of agent connections
+	 * @return the fairness index
+	 * @throws IOException
+	 * @throws CriblException
+	 */
+	public static double getDeliveryFairness(List<String> targetLocations, int connections)
+			throws IOException, CriblException {
+		long[] counts = new long[connections];
+		Matcher matcher = Pattern.compile("^Agent (\\d+) event number ").matcher("");
+		Phase phase = Phase.verification("getDeliveryFairness").addFiles(targetLocations);
+		try {
+			for (String targetLocation : targetLocations) {
+				long half = new File(targetLocation).length() / 2;
+				long read = 0;
+				try (BufferedReader target = SystemUtil.getBufferedReader(targetLocation)) {
+					String line;
+					while (read < half && (line = target.readLine()) != null) {
+						// The generated lines are ASCII so chars are bytes
+						read += line.length() + 1;
+						if (matcher.reset(line).lookingAt()) {
+							int id = Integer.parseInt(matcher.group(1));
+							if (id < connections) {
+								counts[id]++;
+							}
+						}
+					}
+				}
+			}
+		} finally {
+			phase.close();
+		}
+
+		double sum = 0;
+		double sumOfSquares = 0;
+		for (long count : counts) {
+			sum += count;
+			sumOfSquares += (double) count * count;
+		}
+		double fairness = sumOfSquares == 0 ? 0 : (sum * sum) / (connections * sumOfSquares);
+		Logging.log(String.format("Delivery fairness index of %d agents at the targets: %.3f", connections,
+				fairness));
+		return fairness;
+	}
+
+	/**
+	 * The combined measurements of all connections
+	 */
+	public static class Result {
+		private final long[] histogram = new long[256];
+		private final List<Long> connectNanos = new ArrayList<Long>();
+		private long durationNanos;
+		private long totalBytes;
+		private long totalEvents;
+		private int failed;
+
+		private void add(EventLoop loop) {
+			for (Connection connection : loop.owned) {
+				if (connection.failed) {
+					failed++;
+					continue;
+				}
+				for (int i = 0; i < histogram.length; i++) {
+					histogram[i] += connection.histogram[i];
+				}
+				totalBytes += connection.bytesSent;
+				totalEvents += connection.eventsQueued;
+				connectNanos.add(connection.connectedNanos - connection.connectStartNanos);
+			}
+		}
+
+		/**
+		 * @return the byte histogram of everything written to the connections that
+		 *         did not fail
+		 */
+		public long[] getHistogram() {
+			return Arrays.copyOf(histogram, histogram.length);
+		}
+
+		public long getTotalBytes() {
+			return totalBytes;
+		}
+
+		public long getTotalEvents() {
+			return totalEvents;
+		}
+
+		public int getFailed() {
+			return failed;
+		}
+
+		public long getDurationMillis() {
+			return durationNanos / 1000000;
+		}
+
+		/**
+		 * @param percentile between 0 and 100
+		 * @return the connect latency at the percentile in milliseconds
+		 */
+		public double getConnectMillis(double percentile) {
+			if (connectNanos.isEmpty()) {
+				return 0;
+			}
+			List<Long> sorted = new ArrayList<Long>(connectNanos);
+			Collections.sort(sorted);
+			int index = (int) Math.ceil(percentile / 100 * sorted.size()) - 1;
+			return sorted.get(Math.max(0, index)) / 1e6;
+		}
+
+		private void log() {
+			double seconds = Math.max(durationNanos, 1) / 1e9;
+			Logging.log("Fan in load finished in " + getDurationMillis() + " ms with " + failed
+					+ " failed connections");
+			Logging.log(String.format("Connect latency p50: %.1f ms p99: %.1f ms max: %.1f ms", getConnectMillis(50),
+					getConnectMillis(99), getConnectMillis(100)));
+			Logging.log(String.format("Aggregate throughput: %.2f MB/s %.0f events/sec over %d events",
+					totalBytes / seconds / (1024 * 1024), totalEvents / seconds, totalEvents));
+		}
+	}
+}
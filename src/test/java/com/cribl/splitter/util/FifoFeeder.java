@@ -0,0 +1,253 @@
+package com.cribl.splitter.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Feeds the agent through a named pipe (FIFO) at its monitored path so
+ * generated or existing input is streamed straight from the test harness
+ * without first writing the whole corpus to disk. The bytes are hashed and
+ * counted in flight so verification knows the exact SHA-256 digest and byte
+ * histogram of the input without a second read. The lines can be classified
+ * in flight too by a LineClassifier pass.
+ *
+ * Opening a FIFO for writing blocks until the agent opens it for reading so
+ * the feeding happens on its own thread started before the containers. The
+ * digest of what was fed can be checked against the digest stored with an
+ * input in a sha256sum file, like inputs/SHA256SUMS.
+ *
+ */
+public class FifoFeeder {
+	// How long the feeding thread is given to see the FIFO opened or released
+	private static final long OPEN_GRACE_MILLIS = 1000;
+
+	private final String location;
+	private final Thread thread;
+	private final long[] histogram = new long[256];
+	private final MessageDigest digest;
+	private final LineClassifier.Pass classification;
+	private volatile long bytes;
+	private volatile boolean opened;
+	private volatile Exception failure;
+
+	/**
+	 * Replace the file at the location with a new FIFO
+	 *
+	 * @param location the agent's monitored path
+	 * @throws IOException
+	 * @throws CriblException
+	 */
+	public static void createFifo(String location) throws IOException, CriblException {
+		Files.deleteIfExists(Paths.get(location));
+		SystemUtil.runCommand("mkfifo " + location, null);
+		File file = new File(location);
+		if (!file.exists() || file.isFile()) {
+			Logging.error("Unable to create a FIFO at: " + location);
+		}
+	}
+
+	/**
+	 * Start feeding the source into a FIFO created with createFifo
+	 *
+	 * @param location the FIFO location
+	 * @param source   the input to stream which is closed when done
+	 * @throws CriblException
+	 */
+	public FifoFeeder(String location, InputStream source) throws CriblException {
+		this(location, source, null);
+	}
+
+	/**
+	 * Start feeding the source into a FIFO created with createFifo while
+	 * classifying its lines
+	 *
+	 * @param location       the FIFO location
+	 * @param source         the input to stream which is closed when done
+	 * @param classification the pass classifying the input or null
+	 * @throws CriblException
+	 */
+	public FifoFeeder(String location, final InputStream source, LineClassifier.Pass classification)
+			throws CriblException {
+		this.location = location;
+		this.classification = classification;
+		digest = newDigest();
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				feed(source);
+			}
+		}, "fifo-feeder");
+		thread.setDaemon(true);
+		thread.start();
+		Logging.log("Feeding the FIFO at: " + location);
+	}
+
+	private void feed(InputStream source) {
+		byte[] buffer = new byte[64 * 1024];
+		try (InputStream input = source; OutputStream output = new FileOutputStream(location)) {
+			opened = true;
+			int read;
+			while ((read = input.read(buffer)) > 0) {
+				digest.update(buffer, 0, read);
+				for (int i = 0; i < read; i++) {
+					histogram[buffer[i] & 0xff]++;
+				}
+				if (classification != null) {
+					classification.update(buffer, 0, read);
+				}
+				output.write(buffer, 0, read);
+				bytes += read;
+			}
+		} catch (IOException e) {
+			failure = e;
+		}
+	}
+
+	/**
+	 * @return the bytes fed so far
+	 */
+	public long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * Wait for the whole source to be fed once the agent has exited. The agent
+	 * can no longer open a FIFO it never opened so that fails straight away,
+	 * after opening it for reading here to release the feeding thread
+	 *
+	 * @param timeoutMillis how long to wait for the feeding to finish
+	 * @return Result
+	 * @throws CriblException
+	 */
+	public Result await(long timeoutMillis) throws CriblException {
+		try {
+			thread.join(OPEN_GRACE_MILLIS);
+			if (thread.isAlive() && !opened) {
+				new FileInputStream(location).close();
+				thread.join(OPEN_GRACE_MILLIS);
+				Logging.error("The FIFO at: " + location + " was never opened for reading by the agent");
+			}
+			thread.join(timeoutMillis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			Logging.error("Interrupted feeding the FIFO at: " + location);
+		} catch (IOException e) {
+			Logging.error("Unable to release the FIFO at: " + location + " " + e.getMessage());
+		}
+		if (thread.isAlive()) {
+			Logging.error("Timed out feeding the FIFO at: " + location + " after " + bytes + " bytes");
+		}
+		if (failure != null) {
+			Logging.error("Feeding the FIFO failed after " + bytes + " bytes: " + failure.getMessage());
+		}
+
+		Result result = new Result(bytes, toHex(digest.digest()), Arrays.copyOf(histogram, histogram.length),
+				classification == null ? null : classification.finish());
+		Logging.log("Fed " + result.getBytes() + " bytes with SHA-256: " + result.getSha256());
+		return result;
+	}
+
+	/**
+	 * Read the SHA-256 digest stored for an input in a sha256sum file of lines
+	 * '<hex digest>  <file name>'
+	 *
+	 * @param sumsLocation the sha256sum file next to the inputs
+	 * @param location     the input location
+	 * @return the hex SHA-256 digest or null when none is stored
+	 * @throws IOException
+	 */
+	public static String readSha256(String sumsLocation, String location) throws IOException {
+		if (!new File(sumsLocation).exists()) {
+			return null;
+		}
+		String name = new File(location).getName();
+		for (String line : Files.readAllLines(Paths.get(sumsLocation), StandardCharsets.UTF_8)) {
+			String[] fields = line.trim().split("\\s+\\*?", 2);
+			if (fields.length == 2 && fields[1].equals(name)) {
+				return fields[0];
+			}
+		}
+		return null;
+	}
+
+	private static MessageDigest newDigest() throws CriblException {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new CriblException("SHA-256 is not available: " + e.getMessage());
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder();
+		for (byte b : bytes) {
+			hex.append(String.format("%02x", b));
+		}
+		return hex.toString();
+	}
+
+	/**
+	 * What was fed through the FIFO
+	 */
+	public static class Result {
+		private final long bytes;
+		private final String sha256;
+		private final long[] histogram;
+		private final LineClassifier.Result classification;
+
+		private Result(long bytes, String sha256, long[] histogram, LineClassifier.Result classification) {
+			this.bytes = bytes;
+			this.sha256 = sha256;
+			this.histogram = histogram;
+			this.classification = classification;
+		}
+
+		public long getBytes() {
+			return bytes;
+		}
+
+		/**
+		 * @return the hex SHA-256 digest of the input
+		 */
+		public String getSha256() {
+			return sha256;
+		}
+
+		/**
+		 * Fail when what was fed does not have the digest stored for the input
+		 *
+		 * @param expected the stored hex SHA-256 digest
+		 * @throws CriblException
+		 */
+		public void verifySha256(String expected) throws CriblException {
+			if (!expected.equalsIgnoreCase(sha256)) {
+				Logging.error("The SHA-256 fed through the FIFO: " + sha256 + " does not match the stored: " + expected);
+			}
+		}
+
+		/**
+		 * @return the count of each byte value 0 to 255 in the input
+		 */
+		public long[] getHistogram() {
+			return Arrays.copyOf(histogram, histogram.length);
+		}
+
+		/**
+		 * @return the line classification of the input or null when it was not
+		 *         classified
+		 */
+		public LineClassifier.Result getClassification() {
+			return classification;
+		}
+	}
+}
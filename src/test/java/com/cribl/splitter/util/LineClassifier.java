@@ -0,0 +1,479 @@
+package com.cribl.splitter.util;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Labels every line of one or more logs in a single pass. Literal keywords
+ * like filter terms and severity tags are compiled into an Aho-Corasick
+ * automaton over the UTF-8 bytes so all keywords are matched at once no matter
+ * how many there are. Regexes are only run on the lines that need them, which
+ * are the lines containing the regex's required literal, or every line when it
+ * has none.
+ *
+ * The count of a pattern is the number of lines it matches, not the number of
+ * occurrences. A last line without a trailing new line is still counted.
+ * Lines kept for the regexes are capped at MAX_LINE_BYTES so memory stays
+ * bounded and a longer line is matched on its start only. The line buffers and
+ * regex matchers are reused from line to line so a pass allocates little
+ * however many lines it reads. The first lines not matching a regex can be
+ * kept as samples, up to a cap, to log what the unmatched lines looked like.
+ *
+ */
+public class LineClassifier {
+	// Keywords are tracked as bits of a long per line
+	private static final int MAX_KEYWORDS = 64;
+	private static final int MAX_LINE_BYTES = 1024 * 1024;
+	private static final int MAX_SAMPLE_BYTES = 1024;
+	private static final int ROOT = 0;
+
+	private final List<String> names = new ArrayList<String>();
+	private final List<byte[]> keywords = new ArrayList<byte[]>();
+	// Keyword index of each name or -1 when the name is a regex
+	private final List<Integer> keywordIndexes = new ArrayList<Integer>();
+	private final List<Pattern> regexes = new ArrayList<Pattern>();
+	private final List<Integer> regexLiterals = new ArrayList<Integer>();
+	private final List<Integer> regexNames = new ArrayList<Integer>();
+	// The regex whose unmatched lines are sampled or -1 and how many to keep
+	private int sampledRegex = -1;
+	private int maxSamples;
+
+	// The automaton as a full transition table with the keywords ending at each
+	// state. Built on the first classify
+	private int[][] transitions;
+	private long[] outputs;
+
+	/**
+	 * Count the lines containing a literal keyword
+	 *
+	 * @param name    the name the count is reported under
+	 * @param keyword the literal text to look for
+	 * @return LineClassifier
+	 * @throws CriblException
+	 */
+	public LineClassifier addKeyword(String name, String keyword) throws CriblException {
+		names.add(name);
+		keywordIndexes.add(keywordIndex(keyword));
+		return this;
+	}
+
+	/**
+	 * Count the lines matching a regex. The regex is only run on lines that
+	 * contain the literal so it should be text every match has to contain
+	 *
+	 * @param name    the name the count is reported under
+	 * @param regex   the regex to find in the line
+	 * @param literal text every match contains or null to run on every line
+	 * @return LineClassifier
+	 * @throws CriblException
+	 */
+	public LineClassifier addRegex(String name, String regex, String literal) throws CriblException {
+		regexes.add(Pattern.compile(regex));
+		regexLiterals.add(literal == null ? -1 : keywordIndex(literal));
+		regexNames.add(names.size());
+		names.add(name);
+		keywordIndexes.add(-1);
+		return this;
+	}
+
+	/**
+	 * Keep the first lines of a classify that a regex does not match
+	 *
+	 * @param name       the name of the regex
+	 * @param maxSamples the most lines kept
+	 * @return LineClassifier
+	 * @throws CriblException
+	 */
+	public LineClassifier sampleUnmatched(String name, int maxSamples) throws CriblException {
+		int regex = regexNames.indexOf(names.indexOf(name));
+		if (regex < 0) {
+			Logging.error("There is no regex named: " + name);
+		}
+		this.sampledRegex = regex;
+		this.maxSamples = maxSamples;
+		return this;
+	}
+
+	private int keywordIndex(String keyword) throws CriblException {
+		if (keyword == null || keyword.isEmpty() || keyword.contains("\n")) {
+			Logging.error("A keyword cannot be null, empty or contain a new line");
+		}
+		byte[] bytes = keyword.getBytes(StandardCharsets.UTF_8);
+		for (int i = 0; i < keywords.size(); i++) {
+			if (Arrays.equals(keywords.get(i), bytes)) {
+				return i;
+			}
+		}
+		if (keywords.size() == MAX_KEYWORDS) {
+			Logging.error("Only " + MAX_KEYWORDS + " distinct keywords are supported");
+		}
+		keywords.add(bytes);
+		transitions = null;
+		return keywords.size() - 1;
+	}
+
+	/**
+	 * Build the trie of the keywords then fill in the failure links breadth first
+	 * so every state has a transition for every byte
+	 */
+	private void build() {
+		List<int[]> table = new ArrayList<int[]>();
+		List<Long> out = new ArrayList<Long>();
+		table.add(newState());
+		out.add(0L);
+		for (int k = 0; k < keywords.size(); k++) {
+			int state = ROOT;
+			for (byte b : keywords.get(k)) {
+				int next = table.get(state)[b & 0xff];
+				if (next <= 0) {
+					next = table.size();
+					table.add(newState());
+					out.add(0L);
+					table.get(state)[b & 0xff] = next;
+				}
+				state = next;
+			}
+			out.set(state, out.get(state) | (1L << k));
+		}
+
+		int[] fail = new int[table.size()];
+		Queue<Integer> queue = new LinkedList<Integer>();
+		int[] root = table.get(ROOT);
+		for (int b = 0; b < 256; b++) {
+			if (root[b] <= 0) {
+				root[b] = ROOT;
+			} else {
+				fail[root[b]] = ROOT;
+				queue.add(root[b]);
+			}
+		}
+		while (!queue.isEmpty()) {
+			int state = queue.poll();
+			int[] row = table.get(state);
+			out.set(state, out.get(state) | out.get(fail[state]));
+			for (int b = 0; b < 256; b++) {
+				int fallback = table.get(fail[state])[b];
+				if (row[b] <= 0) {
+					row[b] = fallback;
+				} else {
+					fail[row[b]] = fallback;
+					queue.add(row[b]);
+				}
+			}
+		}
+
+		transitions = table.toArray(new int[table.size()][]);
+		outputs = new long[out.size()];
+		for (int i = 0; i < outputs.length; i++) {
+			outputs[i] = out.get(i);
+		}
+	}
+
+	private static int[] newState() {
+		int[] row = new int[256];
+		Arrays.fill(row, -1);
+		return row;
+	}
+
+	/**
+	 * Classify every line of each log in one pass per log
+	 *
+	 * @param locations the logs to classify
+	 * @return Result with the counts per log and pattern
+	 * @throws IOException
+	 * @throws CriblException
+	 */
+	public Result classify(List<String> locations) throws IOException, CriblException {
+		if (locations == null || locations.size() == 0) {
+			Logging.error("There needs to be a specified locations to classify");
+		}
+		prepare();
+
+		Result result = new Result(names);
+		Phase phase = Phase.verification("classify").addFiles(locations);
+		try {
+			for (String location : locations) {
+				Pass pass = new Pass(location, result);
+				byte[] buffer = new byte[64 * 1024];
+				try (InputStream input = new FileInputStream(location)) {
+					int read;
+					while ((read = input.read(buffer)) > 0) {
+						pass.update(buffer, 0, read);
+					}
+				}
+				pass.end();
+			}
+		} finally {
+			phase.close();
+		}
+		result.log();
+		return result;
+	}
+
+	/**
+	 * Begin classifying a log whose bytes are handed over as they are read
+	 * elsewhere, like the input fed through a FIFO, so it never has to be read
+	 * again. The pass is used by one thread at a time
+	 *
+	 * @param location the name the counts are reported under
+	 * @return Pass
+	 * @throws CriblException
+	 */
+	public Pass begin(String location) throws CriblException {
+		prepare();
+		return new Pass(location, new Result(names));
+	}
+
+	private void prepare() throws CriblException {
+		if (names.isEmpty()) {
+			Logging.error("There needs to be at least one keyword or regex to classify lines");
+		}
+		if (transitions == null) {
+			build();
+		}
+	}
+
+	/**
+	 * One pass over the bytes of a log
+	 */
+	public class Pass {
+		private final String location;
+		private final Result result;
+		private final long[] counts = new long[names.size() + 1];
+		private final int lines = names.size();
+		private final boolean keepLine = !regexes.isEmpty();
+		private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+		private final Matcher[] matchers = new Matcher[regexes.size()];
+		private byte[] line = new byte[keepLine ? 1024 : 0];
+		private CharBuffer chars = CharBuffer.allocate(line.length);
+		private int lineLength;
+		private int state = ROOT;
+		private long matched;
+		private boolean pending;
+
+		private Pass(String location, Result result) {
+			this.location = location;
+			this.result = result;
+			for (int r = 0; r < matchers.length; r++) {
+				matchers[r] = regexes.get(r).matcher(chars);
+			}
+		}
+
+		/**
+		 * Classify the next bytes of the log
+		 *
+		 * @param buffer the bytes
+		 * @param offset where they start in the buffer
+		 * @param length how many there are
+		 */
+		public void update(byte[] buffer, int offset, int length) {
+			for (int i = offset; i < offset + length; i++) {
+				byte b = buffer[i];
+				if (b == '\n') {
+					endLine();
+					continue;
+				}
+				pending = true;
+				state = transitions[state][b & 0xff];
+				matched |= outputs[state];
+				if (keepLine && lineLength < MAX_LINE_BYTES) {
+					if (lineLength == line.length) {
+						line = Arrays.copyOf(line, Math.min(line.length * 2, MAX_LINE_BYTES));
+						// UTF-8 never decodes to more chars than bytes
+						chars = CharBuffer.allocate(line.length);
+					}
+					line[lineLength++] = b;
+				}
+			}
+		}
+
+		/**
+		 * Count a last line without a new line and add the counts of the log to
+		 * its result
+		 *
+		 * @return Result
+		 */
+		public Result end() {
+			if (pending) {
+				endLine();
+			}
+			result.counts.put(location, counts);
+			return result;
+		}
+
+		/**
+		 * End the pass of a log begun on its own and log its counts
+		 *
+		 * @return Result
+		 */
+		public Result finish() {
+			end();
+			result.log();
+			return result;
+		}
+
+		private void endLine() {
+			if (!countLine(counts, matched, line, lineLength, decoder, chars, matchers)) {
+				result.addSample(location, counts[lines] + 1, line, lineLength, maxSamples);
+			}
+			counts[lines]++;
+			state = ROOT;
+			matched = 0;
+			lineLength = 0;
+			pending = false;
+		}
+	}
+
+	/**
+	 * Count the patterns of a finished line
+	 *
+	 * @return false when the line is not matched by the sampled regex
+	 */
+	private boolean countLine(long[] counts, long matched, byte[] line, int lineLength, CharsetDecoder decoder,
+			CharBuffer chars, Matcher[] matchers) {
+		for (int n = 0; n < names.size(); n++) {
+			int keyword = keywordIndexes.get(n);
+			if (keyword >= 0 && (matched & (1L << keyword)) != 0) {
+				counts[n]++;
+			}
+		}
+		boolean decoded = false;
+		boolean sampledMatch = sampledRegex < 0;
+		for (int r = 0; r < regexes.size(); r++) {
+			int literal = regexLiterals.get(r);
+			if (literal >= 0 && (matched & (1L << literal)) == 0) {
+				continue;
+			}
+			if (!decoded) {
+				chars.clear();
+				decoder.reset();
+				decoder.decode(ByteBuffer.wrap(line, 0, lineLength), chars, true);
+				decoder.flush(chars);
+				chars.flip();
+				decoded = true;
+			}
+			if (matchers[r].reset(chars).find()) {
+				counts[regexNames.get(r)]++;
+				sampledMatch |= r == sampledRegex;
+			}
+		}
+		return sampledMatch;
+	}
+
+	/**
+	 * The line counts of each pattern per log
+	 */
+	public static class Result {
+		private final List<String> names;
+		// Log location to the count of each pattern followed by the total lines
+		private final Map<String, long[]> counts = new LinkedHashMap<String, long[]>();
+		private final List<String> samples = new ArrayList<String>();
+
+		private Result(List<String> names) {
+			this.names = new ArrayList<String>(names);
+		}
+
+		/**
+		 * @param location the log location
+		 * @param name     the pattern name
+		 * @return the lines of the log matching the pattern
+		 */
+		public long getCount(String location, String name) {
+			long[] logCounts = counts.get(location);
+			int index = names.indexOf(name);
+			return logCounts == null || index < 0 ? 0 : logCounts[index];
+		}
+
+		/**
+		 * @param locations the log locations
+		 * @param name      the pattern name
+		 * @return the lines of all the logs matching the pattern
+		 */
+		public long getCount(List<String> locations, String name) {
+			long total = 0;
+			for (String location : locations) {
+				total += getCount(location, name);
+			}
+			return total;
+		}
+
+		/**
+		 * @param location the log location
+		 * @return the total lines of the log
+		 */
+		public long getLines(String location) {
+			long[] logCounts = counts.get(location);
+			return logCounts == null ? 0 : logCounts[names.size()];
+		}
+
+		/**
+		 * @param locations the log locations
+		 * @return the total lines of all the logs
+		 */
+		public long getLines(List<String> locations) {
+			long total = 0;
+			for (String location : locations) {
+				total += getLines(location);
+			}
+			return total;
+		}
+
+		public List<String> getNames() {
+			return names;
+		}
+
+		/**
+		 * @return the sampled unmatched lines as '<location>:<line number>: <line>'
+		 *         in the order they were read
+		 */
+		public List<String> getSamples() {
+			return samples;
+		}
+
+		private void addSample(String location, long lineNumber, byte[] line, int lineLength, int maxSamples) {
+			if (samples.size() >= maxSamples) {
+				return;
+			}
+			String text = new String(line, 0, Math.min(lineLength, MAX_SAMPLE_BYTES), StandardCharsets.UTF_8);
+			if (lineLength > MAX_SAMPLE_BYTES) {
+				text += "... (" + lineLength + " bytes kept)";
+			}
+			samples.add(location + ":" + lineNumber + ": " + text);
+		}
+
+		private void log() {
+			StringBuilder sb = new StringBuilder("Line classification counts\n");
+			sb.append(String.format("%-24s %12s", "Pattern", "Lines"));
+			for (String location : counts.keySet()) {
+				sb.append(String.format(" %s", location));
+			}
+			for (int n = 0; n <= names.size(); n++) {
+				sb.append(String.format("%n%-24s", n == names.size() ? "total" : names.get(n)));
+				long total = 0;
+				StringBuilder perLog = new StringBuilder();
+				for (long[] logCounts : counts.values()) {
+					total += logCounts[n];
+					perLog.append(" ").append(logCounts[n]);
+				}
+				sb.append(String.format(" %12d", total)).append(perLog);
+			}
+			Logging.log(sb.toString());
+		}
+	}
+}
@@ -1,37 +1,82 @@
 package com.cribl.splitter.util;
 
 import java.io.PrintStream;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.testng.Reporter;
 
+/**
+ * Logs to the console and the TestNG report. The console is wrapped once so
+ * every line printed is also added to the report of the test running on the
+ * printing thread. Lines printed on a thread without a test, like the pipeline
+ * worker, can be captured and replayed to the report later on the test's own
+ * thread.
+ *
+ * The report keeps every line in memory until the suite ends so anything
+ * logged per log line, like corrupt lines, has to be capped.
+ *
+ */
 public class Logging {
-	private static final DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+	private static final DateTimeFormatter dateFormat = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
 
-	public static void logToTestNgReporter() {
+	// The lines printed on this thread while capturing or null when not
+	private static final ThreadLocal<List<String>> captured = new ThreadLocal<List<String>>();
+	private static boolean installed;
+
+	public static synchronized void logToTestNgReporter() {
+		if (installed) {
+			return;
+		}
 		System.setOut(new PrintStream(System.out) {
 			public void println(String s) {
-				Reporter.log(s);
+				List<String> lines = captured.get();
+				if (lines != null) {
+					lines.add(s);
+				} else {
+					Reporter.log(s);
+				}
 				super.println(s);
 			}
 		});
+		installed = true;
+	}
+
+	/**
+	 * Capture the lines printed on this thread instead of adding them to the
+	 * report
+	 */
+	public static void startCapture() {
+		captured.set(new ArrayList<String>());
+	}
+
+	/**
+	 * Stop capturing on this thread
+	 *
+	 * @return the lines printed since startCapture to be replayed with
+	 *         Reporter.log
+	 */
+	public static List<String> stopCapture() {
+		List<String> lines = captured.get();
+		captured.remove();
+		return lines == null ? new ArrayList<String>() : lines;
 	}
 
 	public static void log(String s) {
 		logToTestNgReporter();
-		System.out.println(dateFormat.format(new Date()) + "::INFO::" + s);
+		System.out.println(ZonedDateTime.now().format(dateFormat) + "::INFO::" + s);
 	}
 
 	public static void error(String s) throws CriblException {
 		logToTestNgReporter();
-		System.out.println(dateFormat.format(new Date()) + "::ERROR::" + s);
+		System.out.println(ZonedDateTime.now().format(dateFormat) + "::ERROR::" + s);
 		throw new CriblException(s);
 	}
 
 	public static void warrning(String s) {
 		logToTestNgReporter();
-		System.out.println(dateFormat.format(new Date()) + "::WARNING::" + s);
+		System.out.println(ZonedDateTime.now().format(dateFormat) + "::WARNING::" + s);
 	}
 }
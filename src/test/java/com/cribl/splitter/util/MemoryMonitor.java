@@ -0,0 +1,227 @@
+package com.cribl.splitter.util;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadMXBean;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import com.sun.management.GcInfo;
+
+/**
+ * Measures the memory of a call on the calling thread so verification can be
+ * held to a constant footprint. Started and stopped by every verification
+ * Phase it records
+ * <ul>
+ * <li>the bytes allocated by the thread from the ThreadMXBean allocation
+ * counter</li>
+ * <li>the peak heap used, the heap before each GC or at the start and end of
+ * the call</li>
+ * <li>the retained heap, the largest heap left after a GC during the call or
+ * the heap at the end when there was no GC</li>
+ * <li>the retained delta, how far the retained heap grew over the heap at the
+ * start of the call</li>
+ * <li>the number and total time of the GC pauses from the GC
+ * notifications</li>
+ * </ul>
+ * The heap and GCs are of the whole JVM so calls running at the same time see
+ * each other's memory. GC notifications are delivered asynchronously so a GC
+ * ending right as the call ends may be missed.
+ *
+ * With -Dmemory.budgetMB a call whose retained delta exceeds the budget is over
+ * budget and its test is failed by the ProfilingListener. A GC is forced at the
+ * start and end of each call under a budget so the delta is of live objects
+ * only, not the garbage or the heap other tests left behind.
+ *
+ */
+public class MemoryMonitor {
+	private static final long BUDGET_BYTES = Long.getLong("memory.budgetMB", 0) * 1024 * 1024;
+	private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+	private static final Set<String> heapPools = new HashSet<String>();
+	private static final Set<MemoryMonitor> running = new CopyOnWriteArraySet<MemoryMonitor>();
+
+	static {
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				heapPools.add(pool.getName());
+			}
+		}
+		if (threads instanceof com.sun.management.ThreadMXBean) {
+			com.sun.management.ThreadMXBean sunThreads = (com.sun.management.ThreadMXBean) threads;
+			if (sunThreads.isThreadAllocatedMemorySupported()) {
+				sunThreads.setThreadAllocatedMemoryEnabled(true);
+			}
+		}
+		NotificationListener listener = new NotificationListener() {
+			@Override
+			public void handleNotification(Notification notification, Object handback) {
+				if (GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+					onGc(GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData()));
+				}
+			}
+		};
+		for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+			if (collector instanceof NotificationEmitter) {
+				((NotificationEmitter) collector).addNotificationListener(listener, null, null);
+			}
+		}
+	}
+
+	private final long threadId = Thread.currentThread().getId();
+	private final long startAllocated;
+	private final long startHeap;
+	private long allocated = -1;
+	private long peakHeap;
+	private long retainedHeap = -1;
+	private int gcPauses;
+	private long gcPauseMillis;
+
+	private MemoryMonitor() {
+		if (BUDGET_BYTES > 0) {
+			System.gc();
+		}
+		startHeap = getHeapUsed();
+		startAllocated = getThreadAllocated(threadId);
+		peakHeap = startHeap;
+	}
+
+	/**
+	 * Start measuring on the calling thread
+	 *
+	 * @return MemoryMonitor
+	 */
+	public static MemoryMonitor start() {
+		MemoryMonitor monitor = new MemoryMonitor();
+		running.add(monitor);
+		return monitor;
+	}
+
+	/**
+	 * Stop measuring, called on the same thread as start
+	 *
+	 * @return MemoryMonitor
+	 */
+	public MemoryMonitor stop() {
+		long endAllocated = getThreadAllocated(threadId);
+		long heapUsed = getHeapUsed();
+		long retainedAtEnd = heapUsed;
+		if (BUDGET_BYTES > 0) {
+			System.gc();
+			retainedAtEnd = getHeapUsed();
+		}
+		running.remove(this);
+		synchronized (this) {
+			if (startAllocated >= 0 && endAllocated >= 0) {
+				allocated = endAllocated - startAllocated;
+			}
+			peakHeap = Math.max(peakHeap, heapUsed);
+			if (retainedHeap < 0 || BUDGET_BYTES > 0) {
+				retainedHeap = Math.max(retainedHeap, retainedAtEnd);
+			}
+		}
+		return this;
+	}
+
+	private static void onGc(GarbageCollectionNotificationInfo info) {
+		GcInfo gc = info.getGcInfo();
+		long before = sumHeap(gc.getMemoryUsageBeforeGc());
+		long after = sumHeap(gc.getMemoryUsageAfterGc());
+		// Concurrent cycles like 'G1 Concurrent GC' or 'ZGC Cycles' are not pauses
+		boolean pause = !info.getGcName().contains("Concurrent") && !info.getGcName().contains("Cycles");
+		for (MemoryMonitor monitor : running) {
+			synchronized (monitor) {
+				monitor.peakHeap = Math.max(monitor.peakHeap, before);
+				monitor.retainedHeap = Math.max(monitor.retainedHeap, after);
+				if (pause) {
+					monitor.gcPauses++;
+					monitor.gcPauseMillis += gc.getDuration();
+				}
+			}
+		}
+	}
+
+	private static long sumHeap(Map<String, MemoryUsage> usages) {
+		long used = 0;
+		for (Map.Entry<String, MemoryUsage> usage : usages.entrySet()) {
+			if (heapPools.contains(usage.getKey())) {
+				used += usage.getValue().getUsed();
+			}
+		}
+		return used;
+	}
+
+	private static long getHeapUsed() {
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+	}
+
+	private static long getThreadAllocated(long threadId) {
+		if (threads instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(threadId);
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the memory budget of a call in bytes or 0 when there is none
+	 */
+	public static long getBudgetBytes() {
+		return BUDGET_BYTES;
+	}
+
+	/**
+	 * @return true when there is a budget and the retained delta exceeded it
+	 */
+	public synchronized boolean isOverBudget() {
+		return BUDGET_BYTES > 0 && getRetainedDeltaBytes() > BUDGET_BYTES;
+	}
+
+	/**
+	 * @return the bytes allocated by the thread or -1 when not supported
+	 */
+	public synchronized long getAllocatedBytes() {
+		return allocated;
+	}
+
+	public synchronized long getPeakHeapBytes() {
+		return peakHeap;
+	}
+
+	public synchronized long getRetainedHeapBytes() {
+		return retainedHeap;
+	}
+
+	/**
+	 * @return how far the retained heap grew over the heap at the start of the
+	 *         call, which is only of live objects under a budget
+	 */
+	public synchronized long getRetainedDeltaBytes() {
+		return Math.max(0, retainedHeap - startHeap);
+	}
+
+	public synchronized int getGcPauses() {
+		return gcPauses;
+	}
+
+	public synchronized long getGcPauseMillis() {
+		return gcPauseMillis;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format(
+				"allocated %.1f MB, peak heap %.1f MB, retained heap %.1f MB, %.1f MB over the start, %d GC pauses of %d ms",
+				allocated / (1024.0 * 1024.0), peakHeap / (1024.0 * 1024.0), retainedHeap / (1024.0 * 1024.0),
+				getRetainedDeltaBytes() / (1024.0 * 1024.0), gcPauses, gcPauseMillis);
+	}
+}
@@ -0,0 +1,393 @@
+package com.cribl.splitter.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A Merkle tree of the SHA-256 hashes of the fixed size chunks of a log so two
+ * runs can be compared without reading either log again. The leaves are the
+ * chunk hashes and each parent is the hash of its two children, an odd node at
+ * the end of a level is carried up as is. Comparing two trees only descends
+ * into the subtrees whose hashes differ so the cost is in the number of changed
+ * chunks rather than the size of the logs.
+ *
+ * Every level of the tree is cached to '<log>.merkle' next to the log with the
+ * log's size and last modified time so later comparisons of the same logs
+ * only read the cache and never hash again.
+ *
+ */
+public class MerkleTree {
+	public static final String EXTENSION = ".merkle";
+	public static final int CHUNK_SIZE = 64 * 1024;
+	public static final int VERSION = 2;
+	private static final int MAGIC = 0x43524d54; // CRMT
+	private static final int HASH_SIZE = 32;
+
+	private final String location;
+	private final long length;
+	private final int chunkSize;
+	// Level 0 are the leaves and the last level is the root. The hashes of a
+	// level are packed in one array to keep large trees small
+	private final List<byte[]> levels = new ArrayList<byte[]>();
+
+	private MerkleTree(String location, long length, int chunkSize, List<byte[]> levels) {
+		this.location = location;
+		this.length = length;
+		this.chunkSize = chunkSize;
+		this.levels.addAll(levels);
+	}
+
+	/**
+	 * Hash the parents of the leaves up to the root
+	 *
+	 * @return the levels from the leaves to the root
+	 */
+	private static List<byte[]> hashLevels(String location, byte[] leaves) throws CriblException {
+		List<byte[]> levels = new ArrayList<byte[]>();
+		levels.add(leaves);
+		MessageDigest digest = newDigest();
+		byte[] level = leaves;
+		try {
+			while (level.length > HASH_SIZE) {
+				int count = level.length / HASH_SIZE;
+				byte[] parents = new byte[(count + 1) / 2 * HASH_SIZE];
+				for (int i = 0; i < parents.length / HASH_SIZE; i++) {
+					if (2 * i + 1 < count) {
+						digest.update(level, 2 * i * HASH_SIZE, 2 * HASH_SIZE);
+						digest.digest(parents, i * HASH_SIZE, HASH_SIZE);
+					} else {
+						System.arraycopy(level, 2 * i * HASH_SIZE, parents, i * HASH_SIZE, HASH_SIZE);
+					}
+				}
+				levels.add(parents);
+				level = parents;
+			}
+		} catch (DigestException e) {
+			throw new CriblException("Unable to hash the Merkle tree of: " + location + " " + e.getMessage());
+		}
+		return levels;
+	}
+
+	/**
+	 * Load the tree of a log from its cache or build it and cache it when the
+	 * cache is missing or older than the log
+	 *
+	 * @param location the log location
+	 * @return MerkleTree
+	 * @throws IOException
+	 * @throws CriblException
+	 */
+	public static MerkleTree load(String location) throws IOException, CriblException {
+		File log = new File(location);
+		if (!log.isFile()) {
+			Logging.error("The log to build a Merkle tree of does not exist: " + location);
+		}
+		File cache = new File(location + EXTENSION);
+		if (cache.isFile()) {
+			MerkleTree tree = readCache(location, cache, log);
+			if (tree != null) {
+				return tree;
+			}
+		}
+
+		MerkleTree tree = build(location, CHUNK_SIZE);
+		tree.writeCache(cache, log.lastModified());
+		return tree;
+	}
+
+	/**
+	 * Build the tree of a log by hashing each chunk
+	 *
+	 * @param location  the log location
+	 * @param chunkSize the bytes per leaf
+	 * @return MerkleTree
+	 * @throws IOException
+	 * @throws CriblException
+	 */
+	public static MerkleTree build(String location, int chunkSize) throws IOException, CriblException {
+		Phase phase = Phase.verification("buildMerkleTree").addFile(location);
+		try (InputStream input = new FileInputStream(location)) {
+			long length = new File(location).length();
+			int count = (int) ((length + chunkSize - 1) / chunkSize);
+			byte[] leaves = new byte[count * HASH_SIZE];
+			MessageDigest digest = newDigest();
+			byte[] buffer = new byte[chunkSize];
+			for (int i = 0; i < count; i++) {
+				int read = readChunk(input, buffer);
+				digest.update(buffer, 0, read);
+				digest.digest(leaves, i * HASH_SIZE, HASH_SIZE);
+			}
+			return new MerkleTree(location, length, chunkSize, hashLevels(location, leaves));
+		} catch (DigestException e) {
+			throw new CriblException("Unable to hash the chunks of: " + location + " " + e.getMessage());
+		} finally {
+			phase.close();
+		}
+	}
+
+	private static MerkleTree readCache(String location, File cache, File log) throws IOException, CriblException {
+		try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(cache)))) {
+			if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+				return null;
+			}
+			long length = input.readLong();
+			long lastModified = input.readLong();
+			int chunkSize = input.readInt();
+			int count = input.readInt();
+			if (length != log.length() || lastModified != log.lastModified() || chunkSize != CHUNK_SIZE
+					|| count != (int) ((length + chunkSize - 1) / chunkSize)) {
+				Logging.log("The Merkle tree cache is stale for: " + location);
+				return null;
+			}
+			// Each level is stored as its node count and hashes from the leaves up
+			List<byte[]> levels = new ArrayList<byte[]>();
+			int nodes = count;
+			do {
+				if (input.readInt() != nodes) {
+					Logging.log("The Merkle tree cache is corrupt for: " + location);
+					return null;
+				}
+				byte[] level = new byte[nodes * HASH_SIZE];
+				input.readFully(level);
+				levels.add(level);
+				nodes = (nodes + 1) / 2;
+			} while (levels.get(levels.size() - 1).length > HASH_SIZE);
+			return new MerkleTree(location, length, chunkSize, levels);
+		}
+	}
+
+	private void writeCache(File cache, long lastModified) throws IOException {
+		try (DataOutputStream output = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(cache)))) {
+			output.writeInt(MAGIC);
+			output.writeInt(VERSION);
+			output.writeLong(length);
+			output.writeLong(lastModified);
+			output.writeInt(chunkSize);
+			output.writeInt(getChunks());
+			for (byte[] level : levels) {
+				output.writeInt(level.length / HASH_SIZE);
+				output.write(level);
+			}
+		}
+	}
+
+	public String getLocation() {
+		return location;
+	}
+
+	/**
+	 * @return the size of the log in bytes
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	/**
+	 * @return the number of chunks of the log
+	 */
+	public int getChunks() {
+		return levels.get(0).length / HASH_SIZE;
+	}
+
+	/**
+	 * Find where two logs differ by descending only into the subtrees with
+	 * different hashes
+	 *
+	 * @param expected the tree of the log compared against
+	 * @param actual   the tree of the log being compared
+	 * @return Divergence
+	 * @throws IOException
+	 * @throws CriblException
+	 */
+	public static Divergence compare(MerkleTree expected, MerkleTree actual) throws IOException, CriblException {
+		if (expected.chunkSize != actual.chunkSize) {
+			Logging.error("Unable to compare Merkle trees with chunk sizes " + expected.chunkSize + " and "
+					+ actual.chunkSize);
+		}
+		int height = Math.max(expected.levels.size(), actual.levels.size()) - 1;
+		List<Integer> chunks = new ArrayList<Integer>();
+		compare(expected, actual, height, 0, chunks);
+
+		long differentBytes = 0;
+		for (int chunk : chunks) {
+			differentBytes += Math.max(expected.getChunkLength(chunk), actual.getChunkLength(chunk));
+		}
+		long firstOffset = chunks.isEmpty() ? -1 : firstDifference(expected, actual, chunks.get(0));
+		return new Divergence(expected, actual, firstOffset, chunks.size(), differentBytes);
+	}
+
+	private static void compare(MerkleTree expected, MerkleTree actual, int level, int index, List<Integer> chunks) {
+		byte[] expectedLevel = expected.getLevel(level, index);
+		byte[] actualLevel = actual.getLevel(level, index);
+		if (expectedLevel == null && actualLevel == null) {
+			return;
+		}
+		if (expectedLevel != null && actualLevel != null && equals(expectedLevel, actualLevel, index * HASH_SIZE)) {
+			return;
+		}
+		if (level == 0) {
+			chunks.add(index);
+			return;
+		}
+		compare(expected, actual, level - 1, 2 * index, chunks);
+		compare(expected, actual, level - 1, 2 * index + 1, chunks);
+	}
+
+	/**
+	 * The level holding the node covering the leaves [index * 2^level, (index +
+	 * 1) * 2^level) or null when there is no such node
+	 */
+	private byte[] getLevel(int level, int index) {
+		if (level >= levels.size()) {
+			// Above the root of the smaller log so there is nothing to compare
+			return null;
+		}
+		byte[] nodes = levels.get(level);
+		return index < nodes.length / HASH_SIZE ? nodes : null;
+	}
+
+	private static boolean equals(byte[] expected, byte[] actual, int offset) {
+		for (int i = offset; i < offset + HASH_SIZE; i++) {
+			if (expected[i] != actual[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private long getChunkLength(int chunk) {
+		long start = (long) chunk * chunkSize;
+		return Math.max(0, Math.min(chunkSize, length - start));
+	}
+
+	/**
+	 * Read the first different chunk of both logs for the exact byte offset
+	 */
+	private static long firstDifference(MerkleTree expected, MerkleTree actual, int chunk)
+			throws IOException, CriblException {
+		long start = (long) chunk * expected.chunkSize;
+		byte[] expectedBytes = readChunkAt(expected, start);
+		byte[] actualBytes = readChunkAt(actual, start);
+		int common = Math.min(expectedBytes.length, actualBytes.length);
+		for (int i = 0; i < common; i++) {
+			if (expectedBytes[i] != actualBytes[i]) {
+				return start + i;
+			}
+		}
+		return start + common;
+	}
+
+	private static byte[] readChunkAt(MerkleTree tree, long start) throws IOException, CriblException {
+		byte[] buffer = new byte[(int) tree.getChunkLength((int) (start / tree.chunkSize))];
+		if (buffer.length == 0) {
+			return buffer;
+		}
+		try (InputStream input = new FileInputStream(tree.location)) {
+			long skipped = 0;
+			while (skipped < start) {
+				long skip = input.skip(start - skipped);
+				if (skip <= 0) {
+					Logging.error("The log changed since its Merkle tree was built: " + tree.location);
+				}
+				skipped += skip;
+			}
+			if (readChunk(input, buffer) != buffer.length) {
+				Logging.error("The log changed since its Merkle tree was built: " + tree.location);
+			}
+		}
+		return buffer;
+	}
+
+	private static int readChunk(InputStream input, byte[] buffer) throws IOException {
+		int total = 0;
+		int read;
+		while (total < buffer.length && (read = input.read(buffer, total, buffer.length - total)) > 0) {
+			total += read;
+		}
+		return total;
+	}
+
+	private static MessageDigest newDigest() throws CriblException {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new CriblException("SHA-256 is not available: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Where and how much two logs differ
+	 */
+	public static class Divergence {
+		private final MerkleTree expected;
+		private final MerkleTree actual;
+		private final long firstOffset;
+		private final int differentChunks;
+		private final long differentBytes;
+
+		private Divergence(MerkleTree expected, MerkleTree actual, long firstOffset, int differentChunks,
+				long differentBytes) {
+			this.expected = expected;
+			this.actual = actual;
+			this.firstOffset = firstOffset;
+			this.differentChunks = differentChunks;
+			this.differentBytes = differentBytes;
+		}
+
+		/**
+		 * @return true when both logs have exactly the same bytes
+		 */
+		public boolean isIdentical() {
+			return differentChunks == 0;
+		}
+
+		/**
+		 * @return the offset of the first byte that differs or -1 when identical
+		 */
+		public long getFirstOffset() {
+			return firstOffset;
+		}
+
+		/**
+		 * @return the number of chunks that differ
+		 */
+		public int getDifferentChunks() {
+			return differentChunks;
+		}
+
+		/**
+		 * @return the bytes of the chunks that differ, an upper bound of the bytes
+		 *         that differ
+		 */
+		public long getDifferentBytes() {
+			return differentBytes;
+		}
+
+		@Override
+		public String toString() {
+			if (isIdentical()) {
+				return expected.location + " and " + actual.location + " are identical";
+			}
+			return expected.location + " and " + actual.location + " first differ at byte " + firstOffset + " in "
+					+ differentChunks + " of " + Math.max(expected.getChunks(), actual.getChunks()) + " chunks ("
+					+ differentBytes + " bytes)";
+		}
+	}
+}
@@ -0,0 +1,168 @@
+package com.cribl.splitter.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+
+/**
+ * The persisted history of performance metrics from each suite run. The history
+ * is stored as versioned JSON so the format can change without losing older
+ * runs. Metric keys are stored as '<test name>.<metric name>'.
+ *
+ * Each run is tagged with its mode, pipelined when environments overlapped
+ * the verification of the prior test or sequential otherwise. The two modes
+ * contend for the CPU and Docker differently so a run is only compared with
+ * the runs of its own mode.
+ *
+ */
+public class PerformanceHistory {
+	// Bump when the format changes. Older versions are discarded on load
+	public static final int VERSION = 2;
+
+	public static final String PIPELINED = "pipelined";
+	public static final String SEQUENTIAL = "sequential";
+
+	private int version = VERSION;
+	private List<Run> runs = new ArrayList<Run>();
+
+	/**
+	 * One suite run of metrics
+	 */
+	public static class Run {
+		private String timestamp;
+		private String mode;
+		private Map<String, Double> metrics = new LinkedHashMap<String, Double>();
+
+		public Run(String timestamp, String mode) {
+			this.timestamp = timestamp;
+			this.mode = mode;
+		}
+
+		public String getTimestamp() {
+			return timestamp;
+		}
+
+		public String getMode() {
+			return mode;
+		}
+
+		public void setMode(String mode) {
+			this.mode = mode;
+		}
+
+		public Map<String, Double> getMetrics() {
+			return metrics;
+		}
+	}
+
+	/**
+	 * Load the history from a file. A missing, unreadable or older version file
+	 * starts a new history
+	 *
+	 * @param location the history JSON file
+	 * @return PerformanceHistory
+	 */
+	public static PerformanceHistory load(String location) {
+		File file = new File(location);
+		if (!file.exists()) {
+			Logging.log("No performance history found at: " + location + " starting a new one");
+			return new PerformanceHistory();
+		}
+
+		try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+			PerformanceHistory history = new Gson().fromJson(reader, PerformanceHistory.class);
+			if (history == null || history.version != VERSION || history.runs == null) {
+				Logging.warrning("Performance history at: " + location + " is not version " + VERSION
+						+ " starting a new one");
+				return new PerformanceHistory();
+			}
+			return history;
+		} catch (IOException | JsonParseException e) {
+			Logging.warrning("Unable to read performance history at: " + location + " " + e.getMessage());
+			return new PerformanceHistory();
+		}
+	}
+
+	/**
+	 * Save the history keeping only the most recent runs
+	 *
+	 * @param location the history JSON file
+	 * @param maxRuns  the number of most recent runs to keep
+	 * @throws IOException
+	 */
+	public void save(String location, int maxRuns) throws IOException {
+		while (runs.size() > maxRuns) {
+			runs.remove(0);
+		}
+
+		File file = new File(location);
+		Files.createDirectories(file.getAbsoluteFile().getParentFile().toPath());
+		try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+			new GsonBuilder().setPrettyPrinting().create().toJson(this, writer);
+		}
+		Logging.log("Saved performance history of " + runs.size() + " runs to: " + location);
+	}
+
+	public void addRun(Run run) {
+		runs.add(run);
+	}
+
+	/**
+	 * The baseline of a metric is the mean of the most recent runs of the same
+	 * mode that recorded it
+	 *
+	 * @param key     the '<test name>.<metric name>' key
+	 * @param mode    PIPELINED or SEQUENTIAL
+	 * @param maxRuns the number of most recent runs to average
+	 * @return the baseline or null when no prior run recorded it
+	 */
+	public Double getBaseline(String key, String mode, int maxRuns) {
+		List<Double> values = getTrend(key, mode, maxRuns);
+		if (values.isEmpty()) {
+			return null;
+		}
+		double total = 0;
+		for (double value : values) {
+			total += value;
+		}
+		return total / values.size();
+	}
+
+	/**
+	 * Get the most recent values of a metric in runs of the same mode, oldest
+	 * first
+	 *
+	 * @param key     the '<test name>.<metric name>' key
+	 * @param mode    PIPELINED or SEQUENTIAL
+	 * @param maxRuns the number of most recent values to return
+	 * @return the values
+	 */
+	public List<Double> getTrend(String key, String mode, int maxRuns) {
+		List<Double> values = new ArrayList<Double>();
+		for (int i = runs.size() - 1; i >= 0 && values.size() < maxRuns; i--) {
+			if (!mode.equals(runs.get(i).getMode())) {
+				continue;
+			}
+			Double value = runs.get(i).getMetrics().get(key);
+			if (value != null) {
+				values.add(0, value);
+			}
+		}
+		return values;
+	}
+}
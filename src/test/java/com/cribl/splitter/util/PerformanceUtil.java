@@ -0,0 +1,205 @@
+package com.cribl.splitter.util;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Collects the performance metrics of each test so they can be persisted and
+ * compared against prior runs by the PerformanceListener. Metrics are stored
+ * against the test currently running on the calling thread.
+ *
+ * Naming convention of the metrics decides if a higher value is better. Rates
+ * end with 'MBps' or 'PerSec', fairness indexes end with 'Fairness' and
+ * everything else like durations ending with 'Millis' or memory ending with
+ * 'MB' is better when lower.
+ *
+ * Metrics that are only reported are kept in the history and trend but never
+ * fail a test.
+ *
+ */
+public class PerformanceUtil {
+	private static final ThreadLocal<String> currentTest = new ThreadLocal<String>();
+
+	// Test name to metric name to value in the order they were recorded
+	private static final Map<String, Map<String, Double>> metrics = new LinkedHashMap<String, Map<String, Double>>();
+
+	// Anything measured quicker or smaller than this is treated as noise and not
+	// compared
+	private static final long NOISE_FLOOR_MILLIS = Long.getLong("perf.noiseFloorMillis", 1000);
+	private static final long NOISE_FLOOR_MB = Long.getLong("perf.noiseFloorMB", 64);
+
+	// The heap peak of the harness is of the whole JVM including other tests'
+	// garbage so it is too noisy to gate on
+	private static final Set<String> REPORT_ONLY = new HashSet<String>(Arrays.asList("peakHeapMB"));
+
+	/**
+	 * Set the test the metrics on this thread are recorded against
+	 *
+	 * @param name the test method name
+	 */
+	public static void setCurrentTest(String name) {
+		currentTest.set(name);
+	}
+
+	/**
+	 * @return the test name metrics on this thread are recorded against
+	 */
+	public static String getCurrentTest() {
+		return currentTest.get();
+	}
+
+	/**
+	 * Record a metric for the current test. Nothing is recorded when no test is
+	 * running on this thread
+	 *
+	 * @param metric the metric name following the naming convention
+	 * @param value  the measured value
+	 */
+	public static void record(String metric, double value) {
+		String test = currentTest.get();
+		if (test == null) {
+			return;
+		}
+		synchronized (metrics) {
+			if (!metrics.containsKey(test)) {
+				metrics.put(test, new LinkedHashMap<String, Double>());
+			}
+			metrics.get(test).put(metric, value);
+		}
+	}
+
+	/**
+	 * Add to a metric of the current test for totals over several calls
+	 *
+	 * @param metric the metric name following the naming convention
+	 * @param value  the amount to add
+	 */
+	public static void add(String metric, double value) {
+		String test = currentTest.get();
+		if (test == null) {
+			return;
+		}
+		synchronized (metrics) {
+			if (!metrics.containsKey(test)) {
+				metrics.put(test, new LinkedHashMap<String, Double>());
+			}
+			Double total = metrics.get(test).get(metric);
+			metrics.get(test).put(metric, (total == null ? 0 : total) + value);
+		}
+	}
+
+	/**
+	 * Record the duration of a phase as '<phase>Millis' for the current test
+	 *
+	 * @param phase      the name of the phase like composeUp
+	 * @param startNanos the System.nanoTime() when the phase started
+	 * @return the duration in milliseconds
+	 */
+	public static long recordDuration(String phase, long startNanos) {
+		long millis = (System.nanoTime() - startNanos) / 1000000;
+		record(phase + "Millis", millis);
+		return millis;
+	}
+
+	/**
+	 * Record a rate for the current test. Rates measured over less than the noise
+	 * floor are skipped as small inputs give meaningless numbers
+	 *
+	 * @param metric the metric name ending with 'MBps' or 'PerSec'
+	 * @param amount the amount processed like bytes or events
+	 * @param millis the time it took to process
+	 */
+	public static void recordRate(String metric, double amount, long millis) {
+		if (millis < NOISE_FLOOR_MILLIS) {
+			return;
+		}
+		record(metric, amount * 1000 / millis);
+	}
+
+	/**
+	 * Get a metric already recorded for the current test
+	 *
+	 * @param metric the metric name
+	 * @return the value or null when not recorded
+	 */
+	public static Double get(String metric) {
+		Map<String, Double> testMetrics = getMetrics(currentTest.get());
+		return testMetrics.get(metric);
+	}
+
+	/**
+	 * Get a copy of all metrics recorded for a test
+	 *
+	 * @param test the test method name
+	 * @return metric name to value
+	 */
+	public static Map<String, Double> getMetrics(String test) {
+		synchronized (metrics) {
+			if (test == null || !metrics.containsKey(test)) {
+				return new HashMap<String, Double>();
+			}
+			return new LinkedHashMap<String, Double>(metrics.get(test));
+		}
+	}
+
+	/**
+	 * @param metric the metric name
+	 * @return true when a larger value of the metric is an improvement
+	 */
+	public static boolean isHigherBetter(String metric) {
+		return metric.endsWith("MBps") || metric.endsWith("PerSec") || metric.endsWith("Fairness");
+	}
+
+	/**
+	 * @param metric the metric name
+	 * @return true when a regression of the metric fails the test rather than
+	 *         only being reported
+	 */
+	public static boolean isGated(String metric) {
+		return !REPORT_ONLY.contains(metric);
+	}
+
+	/**
+	 * @param metric the metric name
+	 * @param value  the measured value
+	 * @return true when the metric is a duration or memory that falls under its
+	 *         noise floor
+	 */
+	public static boolean isNoise(String metric, double value) {
+		return (metric.endsWith("Millis") && value < NOISE_FLOOR_MILLIS)
+				|| (metric.endsWith("MB") && value < NOISE_FLOOR_MB);
+	}
+
+	/**
+	 * Reset the peak usage of all heap memory pools so the peak of the next test
+	 * can be read
+	 */
+	public static void resetPeakHeap() {
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+				pool.resetPeakUsage();
+			}
+		}
+	}
+
+	/**
+	 * @return the sum of the peak usage of all heap memory pools since the last
+	 *         reset in MB
+	 */
+	public static double getPeakHeapMB() {
+		long peak = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+				peak += pool.getPeakUsage().getUsed();
+			}
+		}
+		return peak / (1024.0 * 1024.0);
+	}
+}
@@ -0,0 +1,212 @@
+package com.cribl.splitter.util;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.cribl.splitter.jfr.Profiler;
+
+/**
+ * Times a phase of a test and emits a JDK Flight Recorder event for it through
+ * the Profiler. Closed in a finally block so the phase ends even when it fails
+ *
+ * <pre>
+ * Phase phase = Phase.begin("composeUp");
+ * try {
+ * 	SystemUtil.runCommand("docker-compose up --build", "agent_1 exited");
+ * } finally {
+ * 	phase.close();
+ * }
+ * </pre>
+ *
+ * A phase whose body adds files or bytes to it can be the resource of a
+ * try-with-resources instead.
+ *
+ * Harness phases are also recorded as '<phase>Millis' in PerformanceUtil.
+ * Verification phases measure their memory with a MemoryMonitor and add the
+ * allocated bytes and GC pauses to 'verificationAllocatedMB' and
+ * 'verificationGcPauseMillis'. A verification phase nested in another, like
+ * building a MerkleTree for compareRuns, is measured on its own but only the
+ * outermost adds to the totals so nothing is counted twice. Completed phases
+ * are kept per test for the breakdown table of the ProfilingListener.
+ *
+ */
+public class Phase implements AutoCloseable {
+	// Test name to the phases completed in order
+	private static final Map<String, List<Phase>> completed = new HashMap<String, List<Phase>>();
+	// The verification phases open on each thread
+	private static final ThreadLocal<int[]> openVerifications = new ThreadLocal<int[]>() {
+		@Override
+		protected int[] initialValue() {
+			return new int[1];
+		}
+	};
+
+	private final String test;
+	private final String name;
+	private final boolean verification;
+	private final int depth;
+	private final Profiler.Span span;
+	private final MemoryMonitor memory;
+	private final long startNanos;
+	private long millis;
+	private long bytes;
+	private String file;
+
+	private Phase(String name, boolean verification) {
+		this.test = PerformanceUtil.getCurrentTest();
+		this.name = name;
+		this.verification = verification;
+		this.depth = verification ? openVerifications.get()[0]++ : 0;
+		this.memory = verification ? MemoryMonitor.start() : null;
+		this.startNanos = System.nanoTime();
+		this.span = Profiler.get().begin(verification);
+	}
+
+	/**
+	 * Begin a phase of the test harness like composeUp
+	 *
+	 * @param name the phase name
+	 * @return Phase
+	 */
+	public static Phase begin(String name) {
+		return new Phase(name, false);
+	}
+
+	/**
+	 * Begin a VerificationUtil call
+	 *
+	 * @param method the VerificationUtil method name
+	 * @return Phase
+	 */
+	public static Phase verification(String method) {
+		return new Phase(method, true);
+	}
+
+	/**
+	 * Add the files and their sizes to the bytes processed by this phase
+	 *
+	 * @param locations the file locations
+	 * @return Phase
+	 */
+	public Phase addFiles(List<String> locations) {
+		for (String location : locations) {
+			addFile(location);
+		}
+		return this;
+	}
+
+	/**
+	 * Add a file and its size to the bytes processed by this phase
+	 *
+	 * @param location the file location
+	 * @return Phase
+	 */
+	public Phase addFile(String location) {
+		file = file == null ? location : file + "," + location;
+		bytes += new File(location).length();
+		return this;
+	}
+
+	/**
+	 * Add to the bytes processed by this phase
+	 *
+	 * @param count the number of bytes
+	 * @return Phase
+	 */
+	public Phase addBytes(long count) {
+		bytes += count;
+		return this;
+	}
+
+	@Override
+	public void close() {
+		if (memory != null) {
+			memory.stop();
+			openVerifications.get()[0]--;
+		}
+		span.end(this);
+
+		millis = (System.nanoTime() - startNanos) / 1000000;
+		if (!verification) {
+			PerformanceUtil.record(name + "Millis", millis);
+		} else {
+			Logging.log("Memory of " + name + ": " + memory);
+			if (depth == 0) {
+				if (memory.getAllocatedBytes() >= 0) {
+					PerformanceUtil.add("verificationAllocatedMB", memory.getAllocatedBytes() / (1024.0 * 1024.0));
+				}
+				PerformanceUtil.add("verificationGcPauseMillis", memory.getGcPauseMillis());
+			}
+		}
+		if (test != null) {
+			synchronized (completed) {
+				if (!completed.containsKey(test)) {
+					completed.put(test, new ArrayList<Phase>());
+				}
+				completed.get(test).add(this);
+			}
+		}
+	}
+
+	/**
+	 * Get a copy of the phases completed by a test in the order they ended
+	 *
+	 * @param test the test method name
+	 * @return the phases
+	 */
+	public static List<Phase> getCompleted(String test) {
+		synchronized (completed) {
+			if (!completed.containsKey(test)) {
+				return new ArrayList<Phase>();
+			}
+			return new ArrayList<Phase>(completed.get(test));
+		}
+	}
+
+	/**
+	 * @return the test the phase ran for or null when not in a test
+	 */
+	public String getTest() {
+		return test;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public boolean isVerification() {
+		return verification;
+	}
+
+	/**
+	 * @return how many verification phases this one is nested in
+	 */
+	public int getDepth() {
+		return depth;
+	}
+
+	/**
+	 * @return the duration of the phase once closed
+	 */
+	public long getMillis() {
+		return millis;
+	}
+
+	public long getBytes() {
+		return bytes;
+	}
+
+	public String getFile() {
+		return file;
+	}
+
+	/**
+	 * @return the memory of a verification phase or null for a harness phase
+	 */
+	public MemoryMonitor getMemory() {
+		return memory;
+	}
+}
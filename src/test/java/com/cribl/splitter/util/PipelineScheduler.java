@@ -0,0 +1,305 @@
+package com.cribl.splitter.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.testng.Reporter;
+
+/**
+ * Overlaps the docker environment of the next test with the verification of
+ * the current test. Once a test's environment is done the environment of the
+ * next test in the suite order is started on a worker thread while the current
+ * test verifies its logs. Verification stays on the TestNG thread so results
+ * are always reported against the right test method. The suite time then
+ * approaches the larger of the two phases rather than their sum.
+ *
+ * Only one environment runs at a time since they share the docker compose
+ * project and agent input. The next test is only started early when it is
+ * marked Pipelined, so tests running docker themselves are never overlapped,
+ * when it has not run yet and when every test it depends on has passed. The
+ * order is the order TestNG runs the tests in, which is not the order given to
+ * the method interceptor as tests with dependencies run last. An environment
+ * started early is still discarded when its test is skipped or a different
+ * test runs next, like when priorities change the order. Overlapping is turned off with
+ * -Dpipeline.enabled=false or when the suite runs in parallel. The lines the
+ * worker logs are replayed to the report of the test the environment belongs
+ * to.
+ *
+ */
+public class PipelineScheduler {
+	private static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("pipeline.enabled", "true"));
+
+	// The run order of the tests, those that can be started early and the tests
+	// each one depends on
+	private static final List<String> order = new ArrayList<String>();
+	private static final Set<String> pipelined = new HashSet<String>();
+	private static final Map<String, Set<String>> dependencies = new HashMap<String, Set<String>>();
+	private static boolean parallel;
+
+	// The tests that have started running and those that passed
+	private static final Set<String> ran = new HashSet<String>();
+	private static final Set<String> passed = new HashSet<String>();
+
+	// Test name to the environment started early for it
+	private static final Map<String, Started> environments = new HashMap<String, Started>();
+
+	private static final ExecutorService worker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "pipeline-environment");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	/**
+	 * The docker environment of a test
+	 */
+	public interface Environment {
+		/**
+		 * Run the environment and leave the target logs in the test's log folder
+		 *
+		 * @param test the test method name
+		 * @throws IOException
+		 * @throws CriblException
+		 */
+		void run(String test) throws IOException, CriblException;
+	}
+
+	/**
+	 * An environment running on the worker and the lines it logged
+	 */
+	private static class Started {
+		final Future<Void> future;
+		final List<String> output;
+
+		Started(Future<Void> future, List<String> output) {
+			this.future = future;
+			this.output = output;
+		}
+	}
+
+	/**
+	 * Set the order the tests will run in
+	 *
+	 * @param tests          the test method names in run order
+	 * @param pipelinedTests the tests marked Pipelined
+	 * @param dependsOn      the tests each test depends on through its methods
+	 *                       or groups
+	 * @param parallelSuite  true when the tests run in parallel so none are
+	 *                       started early
+	 */
+	public static synchronized void setOrder(List<String> tests, Set<String> pipelinedTests,
+			Map<String, Set<String>> dependsOn, boolean parallelSuite) {
+		order.clear();
+		order.addAll(tests);
+		pipelined.clear();
+		pipelined.addAll(pipelinedTests);
+		dependencies.clear();
+		dependencies.putAll(dependsOn);
+		ran.clear();
+		passed.clear();
+		parallel = parallelSuite;
+		if (parallel && ENABLED) {
+			Logging.log("The tests run in parallel so no environment is started early");
+		}
+	}
+
+	/**
+	 * @return true when environments of the suite's Pipelined tests are started
+	 *         early and overlap the verification of the prior test
+	 */
+	public static synchronized boolean isOverlapping() {
+		return ENABLED && !parallel && !pipelined.isEmpty();
+	}
+
+	/**
+	 * Run the environment of a test or wait for it when it was started early.
+	 * Then start the environment of the next test in the suite
+	 *
+	 * @param test        the test method name
+	 * @param environment the environment shared by the pipelined tests
+	 * @throws IOException
+	 * @throws CriblException
+	 */
+	public static void runEnvironment(String test, Environment environment) throws IOException, CriblException {
+		Started started;
+		synchronized (PipelineScheduler.class) {
+			started = environments.remove(test);
+		}
+		if (started != null) {
+			Logging.log("Waiting for the environment started early for: " + test);
+			try {
+				await(started.future);
+			} finally {
+				// Reported on this thread so the lines belong to the test
+				for (String line : started.output) {
+					Reporter.log(line);
+				}
+			}
+		} else {
+			awaitAll();
+			environment.run(test);
+		}
+		startNext(test, environment);
+	}
+
+	/**
+	 * Discard the environments started early for any test but the one starting.
+	 * Called before each test so a test started out of the suite order never
+	 * shares the docker project with an environment of another test
+	 *
+	 * @param test the test method name starting
+	 */
+	public static void starting(String test) {
+		List<String> others = new ArrayList<String>();
+		synchronized (PipelineScheduler.class) {
+			ran.add(test);
+			for (String name : environments.keySet()) {
+				if (!name.equals(test)) {
+					others.add(name);
+				}
+			}
+		}
+		for (String name : others) {
+			Logging.warrning("Discarding the environment started early for: " + name + " since: " + test
+					+ " runs instead");
+			discard(name);
+		}
+	}
+
+	/**
+	 * Record how a test ended so the tests depending on it can be started early
+	 * once it passed
+	 *
+	 * @param test    the test method name
+	 * @param success true when the test passed
+	 */
+	public static synchronized void finished(String test, boolean success) {
+		ran.add(test);
+		if (success) {
+			passed.add(test);
+		}
+	}
+
+	/**
+	 * Discard the environment started early for a test that will not run, like
+	 * one skipped after a failed dependency. An environment not yet running is
+	 * cancelled and a running one is waited on since stopping docker compose part
+	 * way would leave its containers behind. The test's sampler is stopped
+	 *
+	 * @param test the test method name
+	 */
+	public static void discard(String test) {
+		Started started;
+		synchronized (PipelineScheduler.class) {
+			started = environments.remove(test);
+		}
+		if (started == null) {
+			return;
+		}
+		started.future.cancel(false);
+		try {
+			// The worker runs one environment at a time so this waits out a
+			// cancelled environment that was already running
+			worker.submit(new Runnable() {
+				@Override
+				public void run() {
+				}
+			}).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			// Nothing runs
+		}
+		ResourceSampler.stop(test);
+	}
+
+	/**
+	 * Wait for any environment running on the worker. Failures are left for the
+	 * test the environment belongs to
+	 */
+	public static void awaitAll() {
+		List<Started> running;
+		synchronized (PipelineScheduler.class) {
+			running = new ArrayList<Started>(environments.values());
+		}
+		for (Started started : running) {
+			try {
+				started.future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			} catch (ExecutionException | CancellationException e) {
+				// Reported by the test when it runs
+			}
+		}
+	}
+
+	private static synchronized void startNext(String test, final Environment environment) {
+		int index = order.indexOf(test);
+		if (!isOverlapping() || index < 0 || index + 1 >= order.size()) {
+			return;
+		}
+		final String next = order.get(index + 1);
+		if (!pipelined.contains(next) || ran.contains(next) || environments.containsKey(next)) {
+			return;
+		}
+		Set<String> dependsOn = dependencies.get(next);
+		if (dependsOn != null && !passed.containsAll(dependsOn)) {
+			return;
+		}
+
+		Logging.log("Starting the environment of: " + next + " while: " + test + " verifies");
+		final List<String> output = Collections.synchronizedList(new ArrayList<String>());
+		Future<Void> future = worker.submit(new Callable<Void>() {
+			@Override
+			public Void call() throws IOException, CriblException {
+				// Metrics, phases, samples and log lines belong to the next test
+				PerformanceUtil.setCurrentTest(next);
+				ResourceSampler.start(next);
+				Logging.startCapture();
+				try {
+					environment.run(next);
+				} finally {
+					output.addAll(Logging.stopCapture());
+					PerformanceUtil.setCurrentTest(null);
+				}
+				return null;
+			}
+		});
+		environments.put(next, new Started(future, output));
+	}
+
+	private static void await(Future<Void> future) throws IOException, CriblException {
+		try {
+			future.get();
+		} catch (CancellationException e) {
+			Logging.error("The environment was discarded");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			Logging.error("Interrupted waiting for the environment");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			if (e.getCause() instanceof CriblException) {
+				throw (CriblException) e.getCause();
+			}
+			Logging.error("The environment failed: " + e.getCause());
+		}
+	}
+}
@@ -0,0 +1,17 @@
+package com.cribl.splitter.util;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a test whose environment is only run through
+ * PipelineScheduler.runEnvironment so it can be started early while the prior
+ * test is still verifying
+ *
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Pipelined {
+}
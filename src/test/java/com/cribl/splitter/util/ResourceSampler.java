@@ -0,0 +1,500 @@
+package com.cribl.splitter.util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Samples CPU, RSS, context switches and I/O of the processes launched during a
+ * test by reading /proc/<pid>/stat, status and io of each process tree at a
+ * fixed interval. Processes are attached by SystemUtil.runCommand and the
+ * containers of the application under test are attached by name. They are
+ * resolved to their host pid with one docker inspect per interval only after
+ * compose reports them attached or started, and outside of the sampler's lock
+ * so attaching a process never waits on docker. A root whose /proc entry is
+ * gone or whose start time changed has exited and is dropped so a reused pid
+ * is never sampled.
+ *
+ * Each sample is appended to 'logs/<test name>/resources.csv' as it is taken
+ * so memory use stays constant and the peak and mean of each process tree are
+ * written to 'logs/<test name>/resources-summary.txt' when stopped. Counters
+ * like context switches and I/O bytes are cumulative over the live processes
+ * of the tree so the summary reports the largest value seen. I/O bytes that
+ * could never be read are reported as -1.
+ *
+ * Note this only works on Linux where the containers are processes of the
+ * host. On macOS and Windows the sampler is disabled as there is no /proc.
+ *
+ */
+public class ResourceSampler {
+	private static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("sampler.enabled", "true"))
+			&& new File("/proc/self/stat").exists();
+	private static final long INTERVAL_MILLIS = Long.getLong("sampler.intervalMillis", 500);
+	// How long stopping waits for a sample in progress, resolving the containers
+	// runs docker commands
+	private static final long STOP_TIMEOUT_MILLIS = 30000;
+
+	// Clock ticks per second of utime and stime which is 100 on practically all
+	// Linux kernels
+	private static final double CLOCK_TICKS = 100.0;
+
+	// Test name to the sampler running for it
+	private static final Map<String, ResourceSampler> samplers = new HashMap<String, ResourceSampler>();
+
+	private final String test;
+	private final BufferedWriter csv;
+	private final ScheduledExecutorService executor;
+	private final long startNanos = System.nanoTime();
+
+	// Label to the root process of each tree and containers not yet resolved
+	private final Map<String, Root> roots = new LinkedHashMap<String, Root>();
+	private final List<String> pendingContainers = new ArrayList<String>();
+	private final Map<String, Summary> summaries = new LinkedHashMap<String, Summary>();
+	// Set once compose has started the containers so they can be resolved
+	private volatile boolean containersStarted;
+	// Set once stopped so a sample still running never writes to the closed csv
+	private boolean closed;
+
+	/**
+	 * The root process of a tree with its start time in clock ticks since boot,
+	 * field 22 of /proc/<pid>/stat, which tells a reused pid apart
+	 */
+	private static class Root {
+		final long pid;
+		final long startTime;
+
+		Root(long pid, long startTime) {
+			this.pid = pid;
+			this.startTime = startTime;
+		}
+	}
+
+	/**
+	 * Running totals of a process tree for the summary
+	 */
+	private static class Summary {
+		long samples;
+		long lastTicks = -1;
+		long lastNanos;
+		double peakCpu;
+		double totalCpu;
+		long peakRssKb;
+		long totalRssKb;
+		long peakProcesses;
+		long maxVoluntary;
+		long maxInvoluntary;
+		long maxReadBytes = -1;
+		long maxWriteBytes = -1;
+	}
+
+	/**
+	 * One reading of a process tree
+	 */
+	private static class Sample {
+		long processes;
+		long threads;
+		long ticks;
+		long rssKb;
+		long voluntary;
+		long involuntary;
+		long readBytes = -1;
+		long writeBytes = -1;
+	}
+
+	private ResourceSampler(String test) throws IOException {
+		this.test = test;
+		Files.createDirectories(Paths.get("logs", test));
+		csv = new BufferedWriter(new FileWriter(new File("logs/" + test + "/resources.csv")));
+		csv.write("elapsedMillis,label,processes,threads,cpuPercent,rssKB,voluntaryCtxSwitches,"
+				+ "nonvoluntaryCtxSwitches,readBytes,writeBytes\n");
+		executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "resource-sampler-" + test);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		executor.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				sample();
+			}
+		}, 0, INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Start sampling for a test. Does nothing when disabled with
+	 * -Dsampler.enabled=false or there is no /proc
+	 *
+	 * @param test the test method name
+	 */
+	public static void start(String test) {
+		if (!ENABLED) {
+			return;
+		}
+		synchronized (samplers) {
+			if (samplers.containsKey(test)) {
+				return;
+			}
+			try {
+				samplers.put(test, new ResourceSampler(test));
+			} catch (IOException e) {
+				Logging.warrning("Unable to start the resource sampler for: " + test + " " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Stop sampling for a test and write the summary
+	 *
+	 * @param test the test method name
+	 */
+	public static void stop(String test) {
+		ResourceSampler sampler;
+		synchronized (samplers) {
+			sampler = samplers.remove(test);
+		}
+		if (sampler != null) {
+			sampler.close();
+		}
+	}
+
+	/**
+	 * @return the sampler of the test running on this thread or null when not
+	 *         sampling
+	 */
+	public static ResourceSampler current() {
+		String test = PerformanceUtil.getCurrentTest();
+		if (test == null) {
+			return null;
+		}
+		synchronized (samplers) {
+			return samplers.get(test);
+		}
+	}
+
+	/**
+	 * Sample a launched process and all of its children
+	 *
+	 * @param label   the name the process tree is reported under
+	 * @param process the launched process
+	 */
+	public void attach(String label, Process process) {
+		long pid = SystemUtil.getPid(process);
+		long startTime = getStartTime(pid);
+		if (startTime >= 0) {
+			synchronized (this) {
+				roots.put(uniqueLabel(label), new Root(pid, startTime));
+			}
+		}
+	}
+
+	/**
+	 * Sample the processes of containers once compose reports them attached or
+	 * containersStarted is called
+	 *
+	 * @param containers the container names
+	 */
+	public synchronized void attachContainers(String... containers) {
+		for (String container : containers) {
+			if (!pendingContainers.contains(container) && !roots.containsKey(container)) {
+				pendingContainers.add(container);
+			}
+		}
+	}
+
+	/**
+	 * Look for compose attaching to the containers in the output of a command
+	 *
+	 * @param line a line of output of a command run through SystemUtil.runCommand
+	 */
+	public void onOutput(String line) {
+		if (!containersStarted && line.startsWith("Attaching to")) {
+			containersStarted = true;
+		}
+	}
+
+	/**
+	 * The containers are running, for compose started detached which does not
+	 * attach to them
+	 */
+	public void containersStarted() {
+		containersStarted = true;
+	}
+
+	private String uniqueLabel(String label) {
+		String unique = label;
+		for (int i = 2; roots.containsKey(unique); i++) {
+			unique = label + " #" + i;
+		}
+		return unique;
+	}
+
+	private void sample() {
+		try {
+			resolveContainers();
+			synchronized (this) {
+				if (!closed) {
+					sampleRoots();
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			// Never fail the test because of sampling and try again next interval
+			Logging.warrning("Resource sampling failed for: " + test + " " + e.getMessage());
+		}
+	}
+
+	private void sampleRoots() throws IOException {
+		long now = System.nanoTime();
+		long elapsedMillis = (now - startNanos) / 1000000;
+		Iterator<Map.Entry<String, Root>> iterator = roots.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<String, Root> root = iterator.next();
+			if (getStartTime(root.getValue().pid) != root.getValue().startTime) {
+				// Exited and the pid may already belong to another process
+				iterator.remove();
+				continue;
+			}
+			Sample sample = new Sample();
+			readTree(root.getValue().pid, sample);
+			if (sample.processes == 0) {
+				continue;
+			}
+
+			if (!summaries.containsKey(root.getKey())) {
+				summaries.put(root.getKey(), new Summary());
+			}
+			Summary summary = summaries.get(root.getKey());
+			double cpu = 0;
+			if (summary.lastTicks >= 0 && now > summary.lastNanos) {
+				// Ticks go down when a process in the tree exits
+				long ticks = Math.max(0, sample.ticks - summary.lastTicks);
+				cpu = ticks / CLOCK_TICKS * 100 / ((now - summary.lastNanos) / 1e9);
+			}
+			summary.lastTicks = sample.ticks;
+			summary.lastNanos = now;
+			summary.samples++;
+			summary.peakCpu = Math.max(summary.peakCpu, cpu);
+			summary.totalCpu += cpu;
+			summary.peakRssKb = Math.max(summary.peakRssKb, sample.rssKb);
+			summary.totalRssKb += sample.rssKb;
+			summary.peakProcesses = Math.max(summary.peakProcesses, sample.processes);
+			summary.maxVoluntary = Math.max(summary.maxVoluntary, sample.voluntary);
+			summary.maxInvoluntary = Math.max(summary.maxInvoluntary, sample.involuntary);
+			summary.maxReadBytes = Math.max(summary.maxReadBytes, sample.readBytes);
+			summary.maxWriteBytes = Math.max(summary.maxWriteBytes, sample.writeBytes);
+
+			csv.write(elapsedMillis + ",\"" + root.getKey() + "\"," + sample.processes + "," + sample.threads + ","
+					+ String.format("%.1f", cpu) + "," + sample.rssKb + "," + sample.voluntary + ","
+					+ sample.involuntary + "," + sample.readBytes + "," + sample.writeBytes + "\n");
+		}
+	}
+
+	/**
+	 * Resolve the pending containers with one docker inspect run outside the lock.
+	 * Containers that exited before they could be resolved are given up on
+	 */
+	private void resolveContainers() {
+		List<String> containers;
+		synchronized (this) {
+			if (!containersStarted || pendingContainers.isEmpty()) {
+				return;
+			}
+			containers = new ArrayList<String>(pendingContainers);
+		}
+
+		Map<String, String[]> states = inspectContainers(containers);
+		synchronized (this) {
+			for (Map.Entry<String, String[]> state : states.entrySet()) {
+				long pid = Long.parseLong(state.getValue()[0]);
+				long startTime = getStartTime(pid);
+				if (pid > 0 && startTime >= 0) {
+					roots.put(state.getKey(), new Root(pid, startTime));
+					pendingContainers.remove(state.getKey());
+				} else if ("exited".equals(state.getValue()[1]) || "dead".equals(state.getValue()[1])) {
+					pendingContainers.remove(state.getKey());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Get the host pid and status of containers. Not run through
+	 * SystemUtil.runCommand to avoid logging and sampling every attempt
+	 *
+	 * @param containers the container names
+	 * @return container name to its pid and status for the containers that exist
+	 */
+	private static Map<String, String[]> inspectContainers(List<String> containers) {
+		Map<String, String[]> states = new HashMap<String, String[]>();
+		List<String> command = new ArrayList<String>();
+		command.add("docker");
+		command.add("inspect");
+		command.add("-f");
+		command.add("{{.Name}} {{.State.Pid}} {{.State.Status}}");
+		command.addAll(containers);
+		try {
+			// Containers that don't exist yet are reported on stderr and left out
+			Process p = new ProcessBuilder(command).redirectError(new File("/dev/null")).start();
+			try (BufferedReader input = new BufferedReader(new InputStreamReader(p.getInputStream()))) {
+				String line;
+				while ((line = input.readLine()) != null) {
+					String[] fields = line.trim().split(" ");
+					if (fields.length == 3 && fields[0].startsWith("/") && fields[1].matches("\\d+")) {
+						states.put(fields[0].substring(1), new String[] { fields[1], fields[2] });
+					}
+				}
+			}
+			p.waitFor();
+		} catch (IOException e) {
+			// Docker is not available so nothing is resolved
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return states;
+	}
+
+	/**
+	 * @param pid the process id
+	 * @return the start time of the process in clock ticks since boot or -1 when
+	 *         it does not exist
+	 */
+	private static long getStartTime(long pid) {
+		String stat = pid > 0 ? readFile("/proc/" + pid + "/stat") : null;
+		if (stat == null) {
+			return -1;
+		}
+		try {
+			// The command name can contain spaces so split after its closing bracket
+			return Long.parseLong(stat.substring(stat.lastIndexOf(')') + 2).split(" ")[19]);
+		} catch (NumberFormatException | IndexOutOfBoundsException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Add the readings of a process and its children to the sample. Processes can
+	 * exit at any moment so unreadable files are skipped
+	 */
+	private static void readTree(long pid, Sample sample) {
+		String stat = readFile("/proc/" + pid + "/stat");
+		if (stat == null) {
+			return;
+		}
+		// The command name can contain spaces so split after its closing bracket
+		String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+		sample.processes++;
+		sample.ticks += Long.parseLong(fields[11]) + Long.parseLong(fields[12]);
+		sample.threads += Long.parseLong(fields[17]);
+
+		String status = readFile("/proc/" + pid + "/status");
+		if (status != null) {
+			for (String line : status.split("\n")) {
+				if (line.startsWith("VmRSS:")) {
+					sample.rssKb += parseValue(line);
+				} else if (line.startsWith("voluntary_ctxt_switches:")) {
+					sample.voluntary += parseValue(line);
+				} else if (line.startsWith("nonvoluntary_ctxt_switches:")) {
+					sample.involuntary += parseValue(line);
+				}
+			}
+		}
+
+		// Only readable by the owner of the process or root
+		String io = readFile("/proc/" + pid + "/io");
+		if (io != null) {
+			for (String line : io.split("\n")) {
+				if (line.startsWith("read_bytes:")) {
+					sample.readBytes = Math.max(sample.readBytes, 0) + parseValue(line);
+				} else if (line.startsWith("write_bytes:")) {
+					sample.writeBytes = Math.max(sample.writeBytes, 0) + parseValue(line);
+				}
+			}
+		}
+
+		File[] tasks = new File("/proc/" + pid + "/task").listFiles();
+		if (tasks == null) {
+			return;
+		}
+		for (File task : tasks) {
+			String children = readFile(task.getPath() + "/children");
+			if (children == null || children.trim().isEmpty()) {
+				continue;
+			}
+			for (String child : children.trim().split(" ")) {
+				readTree(Long.parseLong(child), sample);
+			}
+		}
+	}
+
+	private static long parseValue(String line) {
+		String[] parts = line.split("\\s+");
+		return Long.parseLong(parts[1]);
+	}
+
+	private static String readFile(String location) {
+		try {
+			return new String(Files.readAllBytes(Paths.get(location)), StandardCharsets.UTF_8);
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Stop the scheduled sampling and wait for a sample in progress to finish
+	 * before closing the csv and writing the summary
+	 */
+	private void close() {
+		executor.shutdown();
+		try {
+			if (!executor.awaitTermination(STOP_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+				Logging.warrning("The resource sampler for: " + test + " did not stop within " + STOP_TIMEOUT_MILLIS
+						+ " ms");
+				executor.shutdownNow();
+			}
+		} catch (InterruptedException e) {
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+
+		synchronized (this) {
+			closed = true;
+			try {
+				csv.close();
+				StringBuilder sb = new StringBuilder();
+				sb.append(String.format("%-34s %8s %9s %9s %10s %10s %5s %12s %12s %14s %14s%n", "Process", "Samples",
+						"PeakCPU%", "MeanCPU%", "PeakRSSKB", "MeanRSSKB", "Procs", "VolCtxSw", "InvolCtxSw",
+						"ReadBytes", "WriteBytes"));
+				for (Map.Entry<String, Summary> entry : summaries.entrySet()) {
+					Summary summary = entry.getValue();
+					sb.append(String.format("%-34s %8d %9.1f %9.1f %10d %10d %5d %12d %12d %14d %14d%n",
+							entry.getKey(), summary.samples, summary.peakCpu, summary.totalCpu / summary.samples,
+							summary.peakRssKb, summary.totalRssKb / summary.samples, summary.peakProcesses,
+							summary.maxVoluntary, summary.maxInvoluntary, summary.maxReadBytes, summary.maxWriteBytes));
+				}
+				Files.write(Paths.get("logs", test, "resources-summary.txt"),
+						sb.toString().getBytes(StandardCharsets.UTF_8));
+				Logging.log("Resource usage of the processes launched by: " + test + "\n" + sb);
+			} catch (IOException e) {
+				Logging.warrning("Unable to write the resource summary for: " + test + " " + e.getMessage());
+			}
+		}
+	}
+}
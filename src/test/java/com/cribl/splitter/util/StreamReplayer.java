@@ -0,0 +1,153 @@
+package com.cribl.splitter.util;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Replays the streams of a capture recorded by the CaptureServer so a run can
+ * be verified and benchmarked again without Docker. The streams can be written
+ * to one file per stream to feed any VerificationUtil check, or sent to a
+ * target stand-in over TCP with one connection per stream either at full speed
+ * or with the original timing between chunks.
+ *
+ */
+public class StreamReplayer {
+	private final String directory;
+	private final List<CaptureFile.Chunk> chunks;
+	// Stream id to total bytes in the order the streams started
+	private final Map<Integer, Long> streams = new LinkedHashMap<Integer, Long>();
+
+	/**
+	 * Load the index of a capture
+	 *
+	 * @param directory the capture directory
+	 * @throws IOException
+	 * @throws CriblException
+	 */
+	public StreamReplayer(String directory) throws IOException, CriblException {
+		this.directory = directory;
+		this.chunks = CaptureFile.readIndex(directory);
+		for (CaptureFile.Chunk chunk : chunks) {
+			Long total = streams.get(chunk.getStream());
+			streams.put(chunk.getStream(), (total == null ? 0 : total) + chunk.getLength());
+		}
+		Logging.log("Loaded capture of " + streams.size() + " streams and " + chunks.size() + " chunks from: "
+				+ directory);
+	}
+
+	/**
+	 * @return the stream ids in the order they started
+	 */
+	public List<Integer> getStreams() {
+		return new ArrayList<Integer>(streams.keySet());
+	}
+
+	/**
+	 * @param stream the stream id
+	 * @return the total bytes of the stream
+	 */
+	public long getBytes(int stream) {
+		Long total = streams.get(stream);
+		return total == null ? 0 : total;
+	}
+
+	/**
+	 * @return the number of chunks across all streams
+	 */
+	public int getChunks() {
+		return chunks.size();
+	}
+
+	/**
+	 * Write each stream at full speed to 'stream<id>.log' in a directory
+	 *
+	 * @param outputDirectory where the stream files are written
+	 * @return the stream file locations in the order the streams started
+	 * @throws IOException
+	 * @throws CriblException
+	 */
+	public ArrayList<String> replayToFiles(String outputDirectory) throws IOException, CriblException {
+		Files.createDirectories(Paths.get(outputDirectory));
+		Map<Integer, OutputStream> outputs = new LinkedHashMap<Integer, OutputStream>();
+		ArrayList<String> locations = new ArrayList<String>();
+		try (Phase phase = Phase.begin("replayToFiles"); DataInputStream data = CaptureFile.openData(directory)) {
+			for (int stream : streams.keySet()) {
+				String location = outputDirectory + "/stream" + stream + ".log";
+				locations.add(location);
+				outputs.put(stream, new BufferedOutputStream(new FileOutputStream(location), 64 * 1024));
+			}
+			byte[] buffer = new byte[64 * 1024];
+			for (CaptureFile.Chunk chunk : chunks) {
+				buffer = CaptureFile.readChunk(data, chunk, buffer);
+				outputs.get(chunk.getStream()).write(buffer, 0, chunk.getLength());
+				phase.addBytes(chunk.getLength());
+			}
+		} finally {
+			for (OutputStream output : outputs.values()) {
+				output.close();
+			}
+		}
+		Logging.log("Replayed " + streams.size() + " streams to: " + locations);
+		return locations;
+	}
+
+	/**
+	 * Send each stream over its own connection to a target or target stand-in.
+	 * The chunks are sent in the order they were captured
+	 *
+	 * @param host           the host to connect to
+	 * @param port           the port to connect to
+	 * @param originalTiming true to wait between chunks as long as when they were
+	 *                       captured, measured from the first chunk so the time
+	 *                       before the capture's first connection is left out,
+	 *                       otherwise send at full speed
+	 * @throws IOException
+	 * @throws CriblException
+	 */
+	public void replayTo(String host, int port, boolean originalTiming) throws IOException, CriblException {
+		Map<Integer, Socket> sockets = new LinkedHashMap<Integer, Socket>();
+		try (Phase phase = Phase.begin("replayTo"); DataInputStream data = CaptureFile.openData(directory)) {
+			byte[] buffer = new byte[64 * 1024];
+			long startNanos = System.nanoTime();
+			long firstNanos = chunks.isEmpty() ? 0 : chunks.get(0).getNanos();
+			for (CaptureFile.Chunk chunk : chunks) {
+				if (originalTiming) {
+					long waitNanos = (chunk.getNanos() - firstNanos) - (System.nanoTime() - startNanos);
+					if (waitNanos > 0) {
+						try {
+							Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+							Logging.error("Interrupted replaying the capture");
+						}
+					}
+				}
+				Socket socket = sockets.get(chunk.getStream());
+				if (socket == null) {
+					socket = new Socket(host, port);
+					socket.setTcpNoDelay(true);
+					sockets.put(chunk.getStream(), socket);
+				}
+				buffer = CaptureFile.readChunk(data, chunk, buffer);
+				socket.getOutputStream().write(buffer, 0, chunk.getLength());
+				phase.addBytes(chunk.getLength());
+			}
+		} finally {
+			for (Socket socket : sockets.values()) {
+				socket.close();
+			}
+		}
+		Logging.log("Replayed " + streams.size() + " streams to " + host + ":" + port
+				+ (originalTiming ? " with the original timing" : " at full speed"));
+	}
+}
@@ -8,10 +8,13 @@ import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.lang.reflect.Field;
 
 public class SystemUtil {
 	/**
-	 * Run a terminal command like 'docker-compose up --build'
+	 * Run a terminal command like 'docker-compose up --build'. When the test is
+	 * being sampled the process is attached to the ResourceSampler which also
+	 * sees its output
 	 * 
 	 * @param command what would be typed in a terminal
 	 * @param exit    specific text to look for to exit if process stays attached
@@ -25,6 +28,10 @@ public class SystemUtil {
 		}
 		Logging.log("Running command: " + command);
 		Process p = Runtime.getRuntime().exec(command);
+		ResourceSampler sampler = ResourceSampler.current();
+		if (sampler != null) {
+			sampler.attach(command, p);
+		}
 
 		StringBuilder sb = new StringBuilder();
 		String line;
@@ -32,6 +39,9 @@ public class SystemUtil {
 		while ((line = input.readLine()) != null) {
 			sb.append(line);
 			System.out.println(line);
+			if (sampler != null) {
+				sampler.onOutput(line);
+			}
 			if (exit != null && line.contains(exit)) {
 				break;
 			}
@@ -42,6 +52,28 @@ public class SystemUtil {
 		return sb.toString();
 	}
 
+	/**
+	 * Get the operating system process id. Process.pid() only exists from Java 9
+	 * so it is called by reflection and falls back to the private pid field of
+	 * the Java 8 Unix implementation
+	 * 
+	 * @param process the launched process
+	 * @return the pid or -1 when it cannot be found
+	 */
+	public static long getPid(Process process) {
+		try {
+			return (Long) Process.class.getMethod("pid").invoke(process);
+		} catch (ReflectiveOperationException e) {
+			try {
+				Field field = process.getClass().getDeclaredField("pid");
+				field.setAccessible(true);
+				return field.getLong(process);
+			} catch (ReflectiveOperationException | RuntimeException e2) {
+				return -1;
+			}
+		}
+	}
+
 	/**
 	 * Copy a file from one location to another. Note the destination name can be
 	 * different to rename the file as well
@@ -2,10 +2,10 @@ package com.cribl.splitter.util;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -18,15 +18,20 @@ public class VerificationUtil {
 	// Note this only works/tested for Unix type systems. Windows new line is '\r\n'
 	private final static int NEW_LINE_INDEX = (int) '\n';
 
+	// Bounds of the corrupt line search so memory doesn't grow with the logs
+	private final static int MAX_LINE_CHARS = 1024 * 1024;
+	private final static int MAX_LOGGED_LINE_CHARS = 1024;
+	private final static int MAX_CORRUPT_LINES_LOGGED = 100;
+
 	/**
 	 * This efficiently verifies the exact content of the logs by streaming the
-	 * files and storing each character count in a hash map where the key is the int
-	 * of the char and value is the count. These counters are then decremented based
-	 * on the target logs. The stream content are a exact match when all counters
-	 * are 0 in the map at the end. Note max memory usage would be max size of int
+	 * files and storing each character count in an array where the index is the
+	 * int of the char and value is the count. These counters are then decremented
+	 * based on the target logs. The stream content are a exact match when all
+	 * counters are 0 at the end. Note max memory usage is the max size of int
 	 * returned by the read method (65,535) by size of a long (64 bits) equaling
-	 * roughly 525 Kb. This could theoretically process a max log with 65535 *
-	 * 9223372036854775807 characters.
+	 * roughly 525 Kb regardless of the log sizes. This could theoretically process
+	 * a max log with 65535 * 9223372036854775807 characters.
 	 * 
 	 * This implicitly verifies the new line counts as well which has key value of
 	 * 10 stored in NEW_LINE_INDEX
@@ -47,53 +52,112 @@ public class VerificationUtil {
 			Logging.error("There needs to be a specified targetLocations");
 		}
 
-		// Hash map to track counts of the log contents
-		Map<Integer, Long> counts = new HashMap<Integer, Long>();
+		Phase phase = Phase.verification("verifyLogContent").addFile(inputLocation).addFiles(targetLocations);
+		try {
+			// Counts of the log contents indexed by char
+			long[] counts = new long[Character.MAX_VALUE + 1];
 
-		// Build the input map for comparison
-		BufferedReader input = SystemUtil.getBufferedReader(inputLocation);
-		int inputKey;
-		while ((inputKey = input.read()) > 0) {
-			counts.put(inputKey, counts.getOrDefault(inputKey, new Long(0)) + 1);
-		}
+			// Build the input counts for comparison
+			try (BufferedReader input = SystemUtil.getBufferedReader(inputLocation)) {
+				int inputKey;
+				while ((inputKey = input.read()) > 0) {
+					counts[inputKey]++;
+				}
+			}
 
-		// Display the line count as info
-		// Note the final check would check the target new lines are same
-		Long totalLines = counts.getOrDefault(NEW_LINE_INDEX, 0L);
-		Logging.log("Total new line count of the input file: " + totalLines);
-
-		// Decrement counts based on target logs.
-		// Can fail early when key doesn't exist or value less than 0
-		for (String targetLocation : targetLocations) {
-			BufferedReader target = SystemUtil.getBufferedReader(targetLocation);
-			int targetKey;
-			while ((targetKey = target.read()) > 0) {
-				if (counts.containsKey(targetKey)) {
-					counts.put(targetKey, counts.get(targetKey) - 1);
-					if (counts.get(targetKey) < 0) {
-						Logging.error("Output log has extra characters not in input: '" + ((char) targetKey) + "'");
+			// Display the line count as info
+			// Note the final check would check the target new lines are same
+			long totalLines = counts[NEW_LINE_INDEX];
+			Logging.log("Total new line count of the input file: " + totalLines);
+
+			// Decrement counts based on target logs.
+			// Can fail early when the count is less than 0
+			for (String targetLocation : targetLocations) {
+				try (BufferedReader target = SystemUtil.getBufferedReader(targetLocation)) {
+					int targetKey;
+					while ((targetKey = target.read()) > 0) {
+						if (--counts[targetKey] < 0) {
+							Logging.error("Output log has extra characters not in input: '" + ((char) targetKey) + "'");
+						}
 					}
-				} else {
-					Logging.error("Output log has extra characters not in input: '" + ((char) targetKey) + "'");
 				}
 			}
-		}
 
-		// Final check of original counts map should be 0
-		for (int key : counts.keySet()) {
-			if (counts.get(key) > 0) {
-				Logging.error("Input log has extra characters not in output log: '" + ((char) key) + "'");
+			// Final check of original counts should be 0
+			for (int key = 0; key < counts.length; key++) {
+				if (counts[key] > 0) {
+					Logging.error("Input log has extra characters not in output log: '" + ((char) key) + "'");
+				}
 			}
+
+			return totalLines;
+		} finally {
+			phase.close();
+		}
+	}
+
+	/**
+	 * Verifies the exact content of the target logs against a byte histogram of
+	 * the input that was counted while it was generated or streamed, so the input
+	 * never has to be read from disk. The targets are read as raw bytes which also
+	 * covers content that isn't valid UTF-8.
+	 * 
+	 * @param inputHistogram  the count of each byte value 0 to 255 in the input
+	 * @param targetLocations the location of one or more events.logs from target
+	 * @return totalLines the total log lines of the input
+	 * @throws IOException
+	 * @throws CriblException
+	 */
+	public static long verifyLogHistogram(long[] inputHistogram, ArrayList<String> targetLocations)
+			throws IOException, CriblException {
+		if (inputHistogram == null || inputHistogram.length != 256) {
+			Logging.error("There needs to be a specified inputHistogram of the 256 byte values");
+		}
+		if (targetLocations == null || targetLocations.size() == 0) {
+			Logging.error("There needs to be a specified targetLocations");
 		}
 
-		return totalLines;
+		Phase phase = Phase.verification("verifyLogHistogram").addFiles(targetLocations);
+		try {
+			long totalLines = inputHistogram[NEW_LINE_INDEX];
+			Logging.log("Total new line count of the input: " + totalLines);
+
+			long[] counts = new long[256];
+			byte[] buffer = new byte[64 * 1024];
+			for (String targetLocation : targetLocations) {
+				try (InputStream target = new FileInputStream(targetLocation)) {
+					int read;
+					while ((read = target.read(buffer)) > 0) {
+						for (int i = 0; i < read; i++) {
+							counts[buffer[i] & 0xff]++;
+						}
+					}
+				}
+			}
+
+			for (int key = 0; key < counts.length; key++) {
+				if (counts[key] > inputHistogram[key]) {
+					Logging.error("Output log has " + (counts[key] - inputHistogram[key])
+							+ " extra bytes not in input of value: " + key);
+				} else if (counts[key] < inputHistogram[key]) {
+					Logging.error("Input has " + (inputHistogram[key] - counts[key])
+							+ " extra bytes not in output log of value: " + key);
+				}
+			}
+
+			return totalLines;
+		} finally {
+			phase.close();
+		}
 	}
 
 	/**
 	 * Try to estimate the number of corrupt log lines for a set of target log
 	 * locations given a well known regex pattern. The possible log lines in
-	 * question are written to console and the total number is returned to pass/fail
-	 * a test
+	 * question are written to console as they are found up to
+	 * MAX_CORRUPT_LINES_LOGGED and the total number is returned to pass/fail a
+	 * test. Lines are matched on their first MAX_LINE_CHARS so memory stays
+	 * bounded however long the lines or many the corrupt lines are
 	 * 
 	 * @param targetLocations the file location of the input used for the test
 	 * @param logEntryPattern the regex to compare log entries to
@@ -110,39 +174,54 @@ public class VerificationUtil {
 			Logging.error("There needs to be a specified targetLocations for calculations");
 		}
 
-		Matcher matcher;
-		Pattern pattern = Pattern.compile(logEntryPattern);
-
-		StringBuilder output = new StringBuilder();
-		long totalCorruptCount = 0;
-		for (String targetLocation : targetLocations) {
-			BufferedReader target = SystemUtil.getBufferedReader(targetLocation);
-
-			int character;
-			long lineCount = 0;
-			StringBuilder lineBuilder = new StringBuilder().append("\n");
-			while ((character = target.read()) > 0) {
-				if (character == NEW_LINE_INDEX) {
-					lineCount += 1;
-					String line = lineBuilder.toString();
-					matcher = pattern.matcher(line);
-					if (!matcher.find()) {
-						totalCorruptCount++;
-						output.append("Corrupt log line not matching the expected regex at line: " + lineCount
-								+ " in file: " + targetLocation + "\n    '" + line + "'\n");
-					}
+		Phase phase = Phase.verification("getCorruptLogCount").addFiles(targetLocations);
+		try {
+			Pattern pattern = Pattern.compile(logEntryPattern);
+
+			long totalCorruptCount = 0;
+			for (String targetLocation : targetLocations) {
+				try (BufferedReader target = SystemUtil.getBufferedReader(targetLocation)) {
+					int character;
+					long lineCount = 0;
+					StringBuilder lineBuilder = new StringBuilder().append("\n");
+					Matcher matcher = pattern.matcher(lineBuilder);
+					while ((character = target.read()) > 0) {
+						if (character == NEW_LINE_INDEX) {
+							lineCount += 1;
+							matcher.reset(lineBuilder);
+							if (!matcher.find()) {
+								totalCorruptCount++;
+								if (totalCorruptCount <= MAX_CORRUPT_LINES_LOGGED) {
+									Logging.log("Corrupt log line not matching the expected regex at line: "
+											+ lineCount + " in file: " + targetLocation + "\n    '"
+											+ formatLine(lineBuilder) + "'");
+								}
+							}
 
-					lineBuilder = new StringBuilder();
-				} else {
-					lineBuilder.append((char) character);
+							lineBuilder.setLength(0);
+						} else if (lineBuilder.length() < MAX_LINE_CHARS) {
+							lineBuilder.append((char) character);
+						}
+					}
 				}
 			}
-		}
 
-		Logging.log(output.toString());
-		Logging.log("Total corrupt count: " + totalCorruptCount);
+			if (totalCorruptCount > MAX_CORRUPT_LINES_LOGGED) {
+				Logging.log("Only the first " + MAX_CORRUPT_LINES_LOGGED + " corrupt log lines were logged");
+			}
+			Logging.log("Total corrupt count: " + totalCorruptCount);
+
+			return totalCorruptCount;
+		} finally {
+			phase.close();
+		}
+	}
 
-		return totalCorruptCount;
+	private static String formatLine(StringBuilder line) {
+		if (line.length() <= MAX_LOGGED_LINE_CHARS) {
+			return line.toString();
+		}
+		return line.substring(0, MAX_LOGGED_LINE_CHARS) + "... (" + line.length() + " chars kept)";
 	}
 
 	/**
@@ -167,35 +246,76 @@ public class VerificationUtil {
 			Logging.error("There needs to be a specified targetLocations for calculations");
 		}
 
-		int totalTargets = targetLocations.size();
-		long expectedAverageSize = inputSize / totalTargets;
-		if (expectedAverageSize == 0) {
-			// Small files can cause divide by 0 error. Estimates are already way off so set
-			// to 1 to be safe
-			expectedAverageSize = 1;
-		}
-		long distance = 0;
-		long totalTargetsSize = 0;
-		for (String targetLocation : targetLocations) {
-			long size = new File(targetLocation).length();
-			distance += Math.abs(size - expectedAverageSize);
-			totalTargetsSize += size;
-		}
+		Phase phase = Phase.verification("verifyLogSizes").addFile(inputLocation).addFiles(targetLocations);
+		try {
+			int totalTargets = targetLocations.size();
+			long expectedAverageSize = inputSize / totalTargets;
+			if (expectedAverageSize == 0) {
+				// Small files can cause divide by 0 error. Estimates are already way off so set
+				// to 1 to be safe
+				expectedAverageSize = 1;
+			}
+			long distance = 0;
+			long totalTargetsSize = 0;
+			for (String targetLocation : targetLocations) {
+				long size = new File(targetLocation).length();
+				distance += Math.abs(size - expectedAverageSize);
+				totalTargetsSize += size;
+			}
+
+			// Verify for file sizes
+			if (inputSize != totalTargetsSize) {
+				Logging.error("Expected total size of events.log to be: " + inputSize + " but found a total size of: "
+						+ totalTargetsSize);
+			}
+
+			// Average the total distances from expected average size over total targets to
+			// get a balance metric
+			int avgDistancePercentage = (int) (((distance * 100) / expectedAverageSize) / totalTargets);
+			Logging.log("The distance is: " + distance);
+			Logging.log("The expectedAverageSize is: " + expectedAverageSize);
+			Logging.log("The totalTargets is: " + totalTargets);
+			Logging.log("The average % delta between files is: " + avgDistancePercentage);
 
-		// Verify for file sizes
-		if (inputSize != totalTargetsSize) {
-			Logging.error("Expected total size of events.log to be: " + inputSize + " but found a total size of: "
-					+ totalTargetsSize);
+			return avgDistancePercentage;
+		} finally {
+			phase.close();
 		}
+	}
 
-		// Average the total distances from expected average size over total targets to
-		// get a balance metric
-		int avgDistancePercentage = (int) (((distance * 100) / expectedAverageSize) / totalTargets);
-		Logging.log("The distance is: " + distance);
-		Logging.log("The expectedAverageSize is: " + expectedAverageSize);
-		Logging.log("The totalTargets is: " + totalTargets);
-		Logging.log("The average % delta between files is: " + avgDistancePercentage);
+	/**
+	 * Compare the target logs of two runs one to one with the Merkle trees of the
+	 * logs. The trees are loaded from the cache next to each log or built and
+	 * cached on first use so comparing the same runs again only reads the caches.
+	 * Each divergence is logged with the first byte that differs
+	 * 
+	 * @param expectedLocations the target logs of the earlier run
+	 * @param actualLocations   the target logs of the run being compared in the
+	 *                          same order
+	 * @return the divergence of each pair of logs
+	 * @throws IOException
+	 * @throws CriblException
+	 */
+	public static ArrayList<MerkleTree.Divergence> compareRuns(ArrayList<String> expectedLocations,
+			ArrayList<String> actualLocations) throws IOException, CriblException {
+		if (expectedLocations == null || actualLocations == null
+				|| expectedLocations.size() != actualLocations.size()) {
+			Logging.error("There needs to be the same number of expectedLocations and actualLocations");
+		}
 
-		return avgDistancePercentage;
+		Phase phase = Phase.verification("compareRuns").addFiles(expectedLocations).addFiles(actualLocations);
+		try {
+			ArrayList<MerkleTree.Divergence> divergences = new ArrayList<MerkleTree.Divergence>();
+			for (int i = 0; i < expectedLocations.size(); i++) {
+				MerkleTree.Divergence divergence = MerkleTree.compare(MerkleTree.load(expectedLocations.get(i)),
+						MerkleTree.load(actualLocations.get(i)));
+				Logging.log(divergence.toString());
+				divergences.add(divergence);
+			}
+			return divergences;
+		} finally {
+			phase.close();
+		}
 	}
+
 }